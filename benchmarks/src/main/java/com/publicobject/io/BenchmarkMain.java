@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs JMH, writing results as JSON to {@code target/jmh-result.json} unless the arguments pick
+ * another result format or file.
+ *
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+public class BenchmarkMain {
+  public static void main(String[] args) throws Exception {
+    List<String> argsList = new ArrayList<String>(Arrays.asList(args));
+    if (!argsList.contains("-rf")) {
+      argsList.add(0, "-rf");
+      argsList.add(1, "json");
+    }
+    if (!argsList.contains("-rff")) {
+      argsList.add(0, "-rff");
+      argsList.add(1, "target/jmh-result.json");
+    }
+    org.openjdk.jmh.Main.main(argsList.toArray(new String[argsList.size()]));
+  }
+}
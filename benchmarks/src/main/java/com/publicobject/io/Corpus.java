@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Generated log files to benchmark against. Each line looks like a request log entry; in a
+ * {@link #DENSE} corpus every line has a {@code password=...} to strip, in a {@link #SPARSE} one
+ * only one line in {@value #SPARSE_INTERVAL} does. Generation is seeded, so a corpus is the same
+ * every time, and a corpus is only generated once per {@code corpus.dir}.
+ *
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+final class Corpus {
+  static final String SPARSE = "sparse";
+  static final String DENSE = "dense";
+  static final String PATTERN = "password=\\S+";
+  private static final int SPARSE_INTERVAL = 10000;
+
+  private static final String[] PATHS = {"/", "/login", "/search?q=strip", "/static/app.js"};
+
+  private Corpus() {}
+
+  /**
+   * Returns the corpus of {@code size}, like {@code 100MB}, and {@code density}, generating it
+   * first if necessary.
+   */
+  static synchronized File get(String size, String density) throws IOException {
+    File directory = new File(System.getProperty("corpus.dir", "target/corpora"));
+    File file = new File(directory, "corpus-" + size + "-" + density + ".log");
+    if (file.exists()) {
+      return file;
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("failed to create " + directory);
+    }
+    // generate to a temp file so that an interrupted run doesn't leave a short corpus behind
+    File temp = new File(directory, file.getName() + ".tmp");
+    generate(temp, parseSize(size), DENSE.equals(density));
+    if (!temp.renameTo(file)) {
+      throw new IOException("failed to rename " + temp + " to " + file);
+    }
+    return file;
+  }
+
+  static long parseSize(String size) {
+    if (size.endsWith("GB")) {
+      return Long.parseLong(size.substring(0, size.length() - 2)) << 30;
+    } else if (size.endsWith("MB")) {
+      return Long.parseLong(size.substring(0, size.length() - 2)) << 20;
+    } else if (size.endsWith("KB")) {
+      return Long.parseLong(size.substring(0, size.length() - 2)) << 10;
+    }
+    return Long.parseLong(size);
+  }
+
+  private static void generate(File file, long size, boolean dense) throws IOException {
+    Random random = new Random(size);
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+    try {
+      StringBuilder line = new StringBuilder();
+      for (long written = 0, lineNumber = 0; written < size; lineNumber++) {
+        line.setLength(0);
+        line.append("2009-06-").append(10 + random.nextInt(20))
+            .append(" 12:").append(10 + random.nextInt(50))
+            .append(":").append(10 + random.nextInt(50))
+            .append(" INFO GET ").append(PATHS[random.nextInt(PATHS.length)])
+            .append(" from 10.0.").append(random.nextInt(256))
+            .append(".").append(random.nextInt(256))
+            .append(" user=u").append(random.nextInt(100000));
+        if (dense || lineNumber % SPARSE_INTERVAL == SPARSE_INTERVAL - 1) {
+          line.append(" password=").append(Long.toString(random.nextLong() & Long.MAX_VALUE, 36));
+        }
+        line.append(" took ").append(random.nextInt(1000)).append("ms\n");
+        int count = (int) Math.min(line.length(), size - written);
+        for (int i = 0; i < count; i++) {
+          out.write(line.charAt(i));
+        }
+        written += count;
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
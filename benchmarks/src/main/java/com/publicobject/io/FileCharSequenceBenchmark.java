@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads from each kind of {@link FileCharSequence}. The {@code charAt} benchmarks report the
+ * time per character; {@link #subSequenceToString} the time to copy out a {@value #SPAN} byte
+ * span at a random position.
+ *
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileCharSequenceBenchmark {
+  private static final int READS = 4096;
+  private static final int SPAN = 4096;
+  private static final int POSITIONS = 64 * 1024;
+
+  @Param({"1MB", "100MB", "1GB"})
+  String size;
+
+  @Param({"channel", "map", "paged", "readAhead"})
+  String source;
+
+  private FileCharSequence sequence;
+  private long length;
+  private long position;
+  /** Random positions, precomputed so that generating them isn't measured. */
+  private long[] positions;
+  private int next;
+
+  @Setup public void setUp() throws IOException {
+    File file = Corpus.get(size, Corpus.SPARSE);
+    if ("channel".equals(source)) {
+      sequence = new FileCharSequence(file);
+    } else if ("map".equals(source)) {
+      sequence = FileCharSequence.map(file);
+    } else if ("paged".equals(source)) {
+      sequence = FileCharSequence.paged(file, 64 * 1024, 16);
+    } else if ("readAhead".equals(source)) {
+      sequence = FileCharSequence.readAhead(file);
+    } else {
+      throw new IllegalArgumentException("unknown source " + source);
+    }
+    length = sequence.longLength();
+    Random random = new Random(0);
+    positions = new long[POSITIONS];
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = (random.nextLong() & Long.MAX_VALUE) % (length - SPAN);
+    }
+  }
+
+  @TearDown public void tearDown() throws IOException {
+    sequence.close();
+  }
+
+  @Benchmark @OperationsPerInvocation(READS)
+  public int charAtSequential() {
+    if (position + READS > length) {
+      position = 0;
+    }
+    int sum = 0;
+    for (int i = 0; i < READS; i++) {
+      sum += sequence.charAt(position + i);
+    }
+    position += READS;
+    return sum;
+  }
+
+  @Benchmark @OperationsPerInvocation(READS)
+  public int charAtRandom() {
+    int sum = 0;
+    for (int i = 0; i < READS; i++) {
+      sum += sequence.charAt(positions[next++ & (POSITIONS - 1)]);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public String subSequenceToString() {
+    long start = positions[next++ & (POSITIONS - 1)];
+    return sequence.subSequence(start, start + SPAN).toString();
+  }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full Strip pass over a corpus, the same work as {@code Strip 'password=\S+' corpus.log}:
+ * matching, and writing the stripped copy to a temp file.
+ *
+ * <p>Strip is a script in the default package, which a benchmark can't refer to by name. It's
+ * loaded and driven reflectively instead; that costs nothing next to a pass over a file.
+ *
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StripBenchmark {
+
+  @Param({"1MB", "100MB", "1GB"})
+  String size;
+
+  @Param({Corpus.SPARSE, Corpus.DENSE})
+  String density;
+
+  private File corpus;
+  private Object strip;
+  private Method stripMethod;
+
+  @Setup public void setUp() throws Exception {
+    corpus = Corpus.get(size, density);
+    Class<?> stripClass = Class.forName("Strip");
+    Constructor<?> constructor = stripClass.getConstructor(Pattern.class, Set.class, boolean.class);
+    strip = constructor.newInstance(
+        Pattern.compile(Corpus.PATTERN), Collections.singleton(corpus), false);
+    Field log = stripClass.getDeclaredField("log");
+    log.setAccessible(true);
+    log.set(strip, new PrintStream(OutputStream.nullOutputStream()));
+    stripMethod = stripClass.getDeclaredMethod("strip");
+    stripMethod.setAccessible(true);
+  }
+
+  @Benchmark
+  public void strip() throws Throwable {
+    try {
+      stripMethod.invoke(strip);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Deletes the stripped copies, which Strip leaves in the temp directory.
+   */
+  @TearDown(Level.Invocation)
+  public void deleteOutput() {
+    File[] outputs = new File(System.getProperty("java.io.tmpdir")).listFiles();
+    if (outputs == null) {
+      return;
+    }
+    for (File output : outputs) {
+      String name = output.getName();
+      if (name.startsWith(corpus.getName() + ".") && name.endsWith(".strip")) {
+        output.delete();
+      }
+    }
+  }
+}
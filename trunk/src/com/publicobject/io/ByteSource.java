@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.io.IOException;
+
+/**
+ * Random access to the bytes of a file. Positions are absolute offsets into the file.
+ *
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+interface ByteSource {
+
+  /**
+   * Returns the number of bytes in the file.
+   */
+  long length();
+
+  /**
+   * Returns the byte at {@code position} as an unsigned value in the range 0..255.
+   */
+  int get(long position) throws IOException;
+
+  /**
+   * Reads exactly {@code count} bytes starting at {@code position} into {@code bytes}.
+   */
+  void read(long position, byte[] bytes, int offset, int count) throws IOException;
+
+  void close() throws IOException;
+}
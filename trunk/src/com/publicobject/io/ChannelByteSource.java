@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads bytes on demand with positional {@link FileChannel} reads. Unlike seek-then-read, a
+ * positional read doesn't touch the channel's position, so any number of threads may read
+ * concurrently without locking.
+ *
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+final class ChannelByteSource implements ByteSource {
+
+  private final FileChannel channel;
+  private final long length;
+
+  private final ThreadLocal<ByteBuffer> singleByte = new ThreadLocal<ByteBuffer>() {
+    @Override protected ByteBuffer initialValue() {
+      return ByteBuffer.allocate(1);
+    }
+  };
+
+  ChannelByteSource(File file) throws IOException {
+    channel = new FileInputStream(file).getChannel();
+    length = channel.size();
+  }
+
+  public long length() {
+    return length;
+  }
+
+  public int get(long position) throws IOException {
+    ByteBuffer buffer = singleByte.get();
+    buffer.clear();
+    if (channel.read(buffer, position) != 1) {
+      return -1;
+    }
+    return buffer.get(0) & 0xff;
+  }
+
+  public void read(long position, byte[] bytes, int offset, int count) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, count);
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position() - offset);
+      if (read == -1) {
+        throw new EOFException();
+      }
+    }
+  }
+
+  public void close() throws IOException {
+    channel.close();
+  }
+}
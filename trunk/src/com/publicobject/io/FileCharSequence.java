@@ -16,66 +16,238 @@
 
 package com.publicobject.io;
 
-import java.io.RandomAccessFile;
 import java.io.File;
 import java.io.IOException;
 
 /**
  * Adapts a text file as a character sequence so that it can be directly manipulated by regular
- * expressions and other character utilities. The file may be at most 2 GB in size and encoded with
- * {@code ISO-8859-1}; otherwise behaviour is undefined.
+ * expressions and other character utilities. The file must be encoded with {@code ISO-8859-1};
+ * otherwise behaviour is undefined.
+ *
+ * <p>By default each character is read from the file on demand. Use {@link #map} to back the
+ * sequence with memory-mapped segments instead; this makes {@link #charAt} a bounds check and a
+ * buffer get, which is dramatically faster when a regular expression visits every character.
+ * Where mapping isn't an option, such as on network filesystems or for files that are still
+ * being appended to, {@link #paged} reads the file in pages held in a small LRU cache. For
+ * forward scans of files that are cold or on slow storage, {@link #readAhead} fetches the next
+ * block in the background while the current one is matched.
+ *
+ * <p>{@link #gzip} reads a gzip compressed file in place, without decompressing it to disk.
+ *
+ * <p>A sequence and all of its views may be read by multiple threads concurrently. Reads are
+ * positional or go to immutable mappings, so matchers on different threads can scan the same
+ * file without locking. Paged sequences keep a separate page cache for each thread.
+ *
+ * <p>Because {@link CharSequence} is indexed by {@code int}, a sequence longer than 2 GB cannot
+ * report its {@link #length}. Use {@link #longLength}, {@link #charAt(long)} and {@link
+ * #subSequence(long, long)} to address such files, and match on views of at most 2 GB.
  *
  * @author jessewilson@google.com (Jesse Wilson)
  */
 public final class FileCharSequence implements CharSequence {
 
-  private final RandomAccessFile randomAccess;
+  private static final int GZIP_PAGE_SIZE = 64 * 1024;
+  private static final int GZIP_PAGE_COUNT = 16;
+  private static final int DEFAULT_READ_AHEAD_BLOCK_SIZE = 1024 * 1024;
+
+  private final ByteSource source;
+  private final LineIndex lines;
   private final long start;
   private final long end;
 
   public FileCharSequence(File file) throws IOException {
-    randomAccess = new RandomAccessFile(file, "r");
-    start = 0;
-    end = randomAccess.length();
+    this(new ChannelByteSource(file));
+  }
+
+  FileCharSequence(ByteSource source) {
+    this.source = source;
+    this.lines = new LineIndex(source);
+    this.start = 0;
+    this.end = source.length();
   }
 
   private FileCharSequence(FileCharSequence prototype, long start, long end) {
-    this.randomAccess = prototype.randomAccess;
+    this.source = prototype.source;
+    this.lines = prototype.lines;
     this.start = start;
     this.end = end;
   }
 
+  /**
+   * Returns a character sequence backed by a read-only memory mapping of {@code file}. Views
+   * created by {@link #subSequence} share the mapping.
+   */
+  public static FileCharSequence map(File file) throws IOException {
+    return new FileCharSequence(new MappedByteSource(file));
+  }
+
+  /**
+   * Returns a character sequence that reads {@code file} in pages of {@code pageSize} bytes,
+   * keeping the {@code pageCount} most recently used pages in memory. Views created by {@link
+   * #subSequence} share the cache.
+   */
+  public static FileCharSequence paged(File file, int pageSize, int pageCount)
+      throws IOException {
+    return new FileCharSequence(
+        new PagedByteSource(new ChannelByteSource(file), pageSize, pageCount));
+  }
+
+  /**
+   * Returns a character sequence that reads {@code file} in 1 MiB blocks, reading ahead by a block
+   * with an {@link java.nio.channels.AsynchronousFileChannel}. See {@link #readAhead(File, int)}.
+   */
+  public static FileCharSequence readAhead(File file) throws IOException {
+    return readAhead(file, DEFAULT_READ_AHEAD_BLOCK_SIZE);
+  }
+
+  /**
+   * Returns a character sequence that reads {@code file} in blocks of {@code blockSize} bytes.
+   * Whenever a thread moves on to the next block, the block after that is read in the background,
+   * so that a matcher scanning forward overlaps its matching with the file's read latency. Each
+   * thread holds three blocks: the one it's reading, the next one and the previous one.
+   */
+  public static FileCharSequence readAhead(File file, int blockSize) throws IOException {
+    return new FileCharSequence(new ReadAheadByteSource(file, blockSize));
+  }
+
+  /**
+   * Returns a character sequence over the decompressed contents of the gzip {@code file}. The
+   * first time a file is opened it's decompressed once to build an index of checkpoints, which is
+   * saved beside it as {@code file.idx}. Reads then only inflate from the nearest checkpoint, or
+   * from where the reading thread left off; decompressed pages are cached like {@link #paged}.
+   */
+  public static FileCharSequence gzip(File file) throws IOException {
+    return gzip(file, GzipByteSource.DEFAULT_CHECKPOINT_INTERVAL);
+  }
+
+  /**
+   * Returns a character sequence over the decompressed contents of the gzip {@code file}, with
+   * an index checkpoint every {@code checkpointInterval} bytes. Each checkpoint costs 32 KiB in
+   * the index; random access inflates up to an interval to reach the position read.
+   */
+  public static FileCharSequence gzip(File file, int checkpointInterval) throws IOException {
+    return new FileCharSequence(new PagedByteSource(
+        new GzipByteSource(file, checkpointInterval), GZIP_PAGE_SIZE, GZIP_PAGE_COUNT));
+  }
+
+  /**
+   * Returns the number of reads served from the page cache, or 0 if this sequence isn't {@link
+   * #paged}. Use this with {@link #cacheMissCount} to tune the page size and count.
+   */
+  public long cacheHitCount() {
+    return source instanceof PagedByteSource ? ((PagedByteSource) source).hitCount() : 0;
+  }
+
+  /**
+   * Returns the number of pages read from the file, or 0 if this sequence isn't {@link #paged}.
+   */
+  public long cacheMissCount() {
+    return source instanceof PagedByteSource ? ((PagedByteSource) source).missCount() : 0;
+  }
+
+  /**
+   * Returns the number of times a thread had to wait for the file, or 0 if this sequence isn't
+   * {@link #readAhead}. Waits happen when a read jumps to another part of the file, or when
+   * matching consumes blocks faster than the file can supply them.
+   */
+  public long readAheadWaitCount() {
+    return source instanceof ReadAheadByteSource ? ((ReadAheadByteSource) source).waitCount() : 0;
+  }
+
+  /**
+   * Returns the length of this sequence.
+   *
+   * @throws IllegalStateException if this sequence is longer than {@link Integer#MAX_VALUE}.
+   */
   public int length() {
-    return (int) (end - start);
+    long length = end - start;
+    if (length > Integer.MAX_VALUE) {
+      throw new IllegalStateException("length " + length + " exceeds Integer.MAX_VALUE");
+    }
+    return (int) length;
+  }
+
+  public long longLength() {
+    return end - start;
   }
 
   public char charAt(int index) {
+    return charAt((long) index);
+  }
+
+  public char charAt(long index) {
+    if (index < 0 || index >= end - start) {
+      throw new IndexOutOfBoundsException("index " + index + " for length " + (end - start));
+    }
     try {
-      randomAccess.seek(start + index);
-      return (char) randomAccess.read();
+      return (char) source.get(start + index);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  public CharSequence subSequence(int start, int end) {
+  public FileCharSequence subSequence(int start, int end) {
+    return subSequence((long) start, (long) end);
+  }
+
+  public FileCharSequence subSequence(long start, long end) {
+    if (start < 0 || start > end || end > this.end - this.start) {
+      throw new IndexOutOfBoundsException(
+          "start " + start + ", end " + end + ", length " + (this.end - this.start));
+    }
     return new FileCharSequence(this, this.start + start, this.start + end);
   }
 
+  /**
+   * Returns the one-based number of the line holding the char at {@code index}. Lines end after
+   * each {@code '\n'} and are counted from the start of the file, even in a view. Line starts are
+   * indexed as far as the furthest lookup, which the sequence and its views share, so looking up
+   * every match in a file scans it only once.
+   */
+  public long lineNumber(long index) {
+    checkPosition(index);
+    try {
+      return lines.line(start + index) + 1;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the one-based column of the char at {@code index} within its line.
+   */
+  public long columnNumber(long index) {
+    checkPosition(index);
+    try {
+      long position = start + index;
+      return position - lines.lineStart(lines.line(position)) + 1;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Checks that {@code index} is in this sequence, or just past its end where an empty match may
+   * be found.
+   */
+  private void checkPosition(long index) {
+    if (index < 0 || index > end - start) {
+      throw new IndexOutOfBoundsException("index " + index + " for length " + (end - start));
+    }
+  }
+
   public void close() throws IOException {
-    randomAccess.close();
+    source.close();
   }
 
   @Override
   public String toString() {
     try {
       byte[] bytes = new byte[length()];
-      randomAccess.seek(start);
-      randomAccess.readFully(bytes);
+      source.read(start, bytes, 0, bytes.length);
       return new String(bytes, "ISO-8859-1");
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 }
-
@@ -0,0 +1,236 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * The decompressed bytes of a gzip file. A read inflates forward from wherever the calling thread
+ * last read, or from the nearest {@link GzipIndex checkpoint} if that's closer, so sequential
+ * reads inflate each byte once and random reads inflate at most a checkpoint interval. Reads of
+ * single bytes are expensive; wrap this in a {@link PagedByteSource}.
+ *
+ * <p>Each thread gets its own inflater, so concurrent readers never contend on a lock. The
+ * inflaters of threads that have died are ended when another thread first reads, so a pool that
+ * replaces its threads doesn't hold their native memory until this is closed.
+ *
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+final class GzipByteSource implements ByteSource {
+  static final int DEFAULT_CHECKPOINT_INTERVAL = 4 * 1024 * 1024;
+  private static final int INPUT_SIZE = 64 * 1024;
+
+  private final FileChannel channel;
+  private final GzipIndex index;
+  private final List<Cursor> cursors = new CopyOnWriteArrayList<Cursor>();
+
+  private final ThreadLocal<Cursor> threadCursor = new ThreadLocal<Cursor>() {
+    @Override protected Cursor initialValue() {
+      dropDeadCursors();
+      Cursor cursor = new Cursor(Thread.currentThread());
+      cursors.add(cursor);
+      return cursor;
+    }
+  };
+
+  GzipByteSource(File file, int checkpointInterval) throws IOException {
+    channel = new FileInputStream(file).getChannel();
+    try {
+      index = GzipIndex.open(file, channel, checkpointInterval);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  public long length() {
+    return index.length;
+  }
+
+  public int get(long position) throws IOException {
+    byte[] result = new byte[1];
+    read(position, result, 0, 1);
+    return result[0] & 0xff;
+  }
+
+  public void read(long position, byte[] bytes, int offset, int count) throws IOException {
+    if (position < 0 || position + count > index.length) {
+      throw new EOFException("position " + position + " for length " + index.length);
+    }
+    Cursor cursor = threadCursor.get();
+    int checkpoint = index.checkpointBefore(position);
+    if (cursor.position == -1
+        || position < cursor.position
+        || index.positions[checkpoint] > cursor.position) {
+      cursor.seek(checkpoint);
+    }
+    cursor.skip(position - cursor.position);
+    cursor.inflate(bytes, offset, count);
+  }
+
+  /**
+   * Drops the cursors of threads that have died, ending their inflaters.
+   */
+  private void dropDeadCursors() {
+    for (Cursor cursor : cursors) {
+      if (!cursor.owner.isAlive() && cursors.remove(cursor)) {
+        cursor.inflater.end();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of threads' cursors held, including those of threads that have died since
+   * a thread last started reading.
+   */
+  int cursorCount() {
+    return cursors.size();
+  }
+
+  public void close() throws IOException {
+    for (Cursor cursor : cursors) {
+      cursor.inflater.end();
+    }
+    channel.close();
+  }
+
+  /**
+   * A thread's inflater and where it's at. A checkpoint inside a member may start at any bit, but
+   * an inflater takes whole bytes; the compressed input is shifted so that the checkpoint's bit
+   * is the first bit the inflater sees.
+   */
+  private final class Cursor {
+    final Thread owner;
+    final Inflater inflater = new Inflater(true);
+    final ByteBuffer raw = ByteBuffer.allocate(INPUT_SIZE + 1);
+    final byte[] shifted = new byte[INPUT_SIZE];
+    byte[] skipped;
+
+    /** The uncompressed position of the next byte inflated, or -1 before the first seek. */
+    long position = -1;
+    /** The most recent checkpoint the inflater started from. */
+    int checkpoint;
+    /** The file position of the next compressed byte to read. */
+    long inputPosition;
+    int shift;
+
+    Cursor(Thread owner) {
+      this.owner = owner;
+    }
+
+    void seek(int checkpoint) {
+      this.checkpoint = checkpoint;
+      position = index.positions[checkpoint];
+      inputPosition = index.bits[checkpoint] >>> 3;
+      shift = (int) (index.bits[checkpoint] & 7);
+      raw.clear();
+      inflater.reset();
+      if (index.windows[checkpoint] != null) {
+        inflater.setDictionary(index.windows[checkpoint]);
+      }
+    }
+
+    void skip(long count) throws IOException {
+      if (count > 0 && skipped == null) {
+        skipped = new byte[INPUT_SIZE];
+      }
+      while (count > 0) {
+        int chunk = (int) Math.min(count, skipped.length);
+        inflate(skipped, 0, chunk);
+        count -= chunk;
+      }
+    }
+
+    void inflate(byte[] bytes, int offset, int count) throws IOException {
+      while (count > 0) {
+        int inflated;
+        try {
+          inflated = inflater.inflate(bytes, offset, count);
+        } catch (DataFormatException e) {
+          throw new ZipException(e.getMessage());
+        }
+        if (inflated == 0) {
+          if (inflater.finished()) {
+            int next = index.nextMember(checkpoint);
+            if (next == -1) {
+              throw new EOFException();
+            }
+            seek(next);
+          } else if (inflater.needsInput()) {
+            fill();
+          } else {
+            throw new ZipException("inflater stalled at " + position);
+          }
+        }
+        position += inflated;
+        offset += inflated;
+        count -= inflated;
+      }
+    }
+
+    /**
+     * Gives the inflater the next block of compressed input, starting {@code shift} bits into its
+     * first byte. The last byte read is held back, since its high bits are the low bits of the
+     * next byte the inflater sees.
+     */
+    private void fill() throws IOException {
+      while (true) {
+        int read = channel.read(raw, inputPosition);
+        if (read == -1) {
+          if (raw.position() == 0) {
+            throw new EOFException("truncated gzip");
+          }
+          // the end of the file; the held back byte's high bits are padding
+          shifted[0] = (byte) ((raw.get(0) & 0xff) >>> shift);
+          raw.clear();
+          inflater.setInput(shifted, 0, 1);
+          return;
+        }
+        inputPosition += read;
+        if (shift == 0) {
+          // the inflater is done with its previous input, so the buffer can be reused
+          inflater.setInput(raw.array(), 0, raw.position());
+          raw.clear();
+          return;
+        }
+        int count = raw.position() - 1;
+        if (count == 0) {
+          continue;
+        }
+        byte[] in = raw.array();
+        for (int i = 0; i < count; i++) {
+          shifted[i] = (byte) ((in[i] & 0xff) >>> shift | in[i + 1] << (8 - shift));
+        }
+        in[0] = in[count];
+        raw.clear();
+        raw.position(1);
+        inflater.setInput(shifted, 0, count);
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,619 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Checkpoints into a gzip file's compressed stream, so that it can be decompressed starting near
+ * any position rather than from the beginning.
+ *
+ * <p>A checkpoint is taken at the start of each gzip member, and at the first deflate block
+ * boundary after every {@code interval} bytes of output. Deflate blocks aren't byte aligned, so a
+ * checkpoint records its compressed position in bits. It also records the last 32 KiB of output,
+ * which is the dictionary that back references at that point may copy from.
+ *
+ * <p>{@link java.util.zip.Inflater} can't report where its blocks start, so the index is built
+ * by a pass through a simple decoder of its own. That pass also checks each member's CRC-32 and
+ * length. The index is saved beside the file as {@code file.idx} so that it's only built once.
+ *
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+final class GzipIndex {
+  private static final long MAGIC = 0x677a696e64657831L; // "gzindex1"
+  static final int WINDOW_SIZE = 32 * 1024;
+
+  /** The total uncompressed length. */
+  final long length;
+  /** The uncompressed position of each checkpoint. */
+  final long[] positions;
+  /** The compressed bit position of each checkpoint's block, or of its member's deflate data. */
+  final long[] bits;
+  /** The member's output preceding each checkpoint, or null for checkpoints at member starts. */
+  final byte[][] windows;
+
+  private GzipIndex(long length, long[] positions, long[] bits, byte[][] windows) {
+    this.length = length;
+    this.positions = positions;
+    this.bits = bits;
+    this.windows = windows;
+  }
+
+  /**
+   * Returns the index of the last checkpoint at or before the uncompressed {@code position}.
+   */
+  int checkpointBefore(long position) {
+    int low = 0;
+    int high = positions.length - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (positions[mid] <= position) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Returns the index of the first member start after {@code checkpoint}, or -1 if it's in the
+   * last member.
+   */
+  int nextMember(int checkpoint) {
+    for (int i = checkpoint + 1; i < windows.length; i++) {
+      if (windows[i] == null) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the index saved beside {@code file}, building and saving it if it's missing or out of
+   * date. If the index can't be saved it's only kept in memory.
+   */
+  static GzipIndex open(File file, FileChannel channel, int interval) throws IOException {
+    File indexFile = new File(file.getPath() + ".idx");
+    long size = channel.size();
+    long modified = file.lastModified();
+    GzipIndex result = load(indexFile, size, modified, interval);
+    if (result == null) {
+      result = new Builder(channel, interval).build();
+      try {
+        result.save(indexFile, size, modified, interval);
+      } catch (IOException e) {
+        // the directory isn't writable; the next open builds the index again
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the saved index, or null if it's missing, unreadable or for another version of the
+   * file.
+   */
+  private static GzipIndex load(File indexFile, long size, long modified, int interval) {
+    if (!indexFile.exists()) {
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(indexFile)));
+      try {
+        if (in.readLong() != MAGIC
+            || in.readLong() != size
+            || in.readLong() != modified
+            || in.readInt() != interval) {
+          return null;
+        }
+        long length = in.readLong();
+        int count = in.readInt();
+        long[] positions = new long[count];
+        long[] bits = new long[count];
+        byte[][] windows = new byte[count][];
+        for (int i = 0; i < count; i++) {
+          positions[i] = in.readLong();
+          bits[i] = in.readLong();
+          int windowLength = in.readInt();
+          if (windowLength >= 0) {
+            byte[] compressed = new byte[in.readInt()];
+            in.readFully(compressed);
+            windows[i] = inflate(compressed, windowLength);
+          }
+        }
+        return new GzipIndex(length, positions, bits, windows);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return null;
+    } catch (DataFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Writes this index to a temporary file that's renamed into place, so that a concurrent reader
+   * never sees a partial index.
+   */
+  private void save(File indexFile, long size, long modified, int interval) throws IOException {
+    File directory = indexFile.getAbsoluteFile().getParentFile();
+    File temp = File.createTempFile("." + indexFile.getName() + ".", ".tmp", directory);
+    try {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        out.writeLong(MAGIC);
+        out.writeLong(size);
+        out.writeLong(modified);
+        out.writeInt(interval);
+        out.writeLong(length);
+        out.writeInt(positions.length);
+        Deflater deflater = new Deflater();
+        byte[] compressed = new byte[WINDOW_SIZE * 2];
+        for (int i = 0; i < positions.length; i++) {
+          out.writeLong(positions[i]);
+          out.writeLong(bits[i]);
+          out.writeInt(windows[i] != null ? windows[i].length : -1);
+          if (windows[i] != null) {
+            // windows are text, so they compress well
+            deflater.reset();
+            deflater.setInput(windows[i]);
+            deflater.finish();
+            int compressedLength = deflater.deflate(compressed);
+            out.writeInt(compressedLength);
+            out.write(compressed, 0, compressedLength);
+          }
+        }
+        deflater.end();
+      } finally {
+        out.close();
+      }
+      if (!temp.renameTo(indexFile)) {
+        throw new IOException("couldn't rename " + temp + " to " + indexFile);
+      }
+    } finally {
+      temp.delete();
+    }
+  }
+
+  private static byte[] inflate(byte[] compressed, int length) throws DataFormatException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      byte[] result = new byte[length];
+      if (inflater.inflate(result) != length || !inflater.finished()) {
+        throw new DataFormatException("corrupt window");
+      }
+      return result;
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Decodes a gzip file from start to end, taking checkpoints along the way. This follows RFC
+   * 1951 directly; Huffman codes are decoded with a table indexed by the next code's bits.
+   */
+  private static final class Builder {
+    private static final int INPUT_SIZE = 64 * 1024;
+    private static final int OUTPUT_MASK = 2 * WINDOW_SIZE - 1;
+
+    private static final int[] LENGTH_BASE = {
+        3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+        35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+    private static final int[] LENGTH_EXTRA = {
+        0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+    private static final int[] DISTANCE_BASE = {
+        1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+        257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+    private static final int[] DISTANCE_EXTRA = {
+        0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+        7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+    private static final int[] CODE_LENGTH_ORDER = {
+        16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+
+    private final FileChannel channel;
+    private final int interval;
+
+    private final ByteBuffer input = ByteBuffer.allocate(INPUT_SIZE);
+    /** The file position of the first byte in {@code input}. */
+    private long inputStart;
+    private long bitBuffer;
+    private int bitCount;
+
+    /** The most recent output, enough for back references and a checkpoint's window. */
+    private final byte[] output = new byte[OUTPUT_MASK + 1];
+    private long outputCount;
+    private long memberStart;
+    private final CRC32 crc = new CRC32();
+    private long crcCount;
+
+    private long[] positions = new long[16];
+    private long[] bits = new long[16];
+    private byte[][] windows = new byte[16][];
+    private int checkpointCount;
+
+    private Huffman fixedLiterals;
+    private Huffman fixedDistances;
+
+    Builder(FileChannel channel, int interval) {
+      if (interval < 1) {
+        throw new IllegalArgumentException("interval < 1: " + interval);
+      }
+      this.channel = channel;
+      this.interval = interval;
+      input.limit(0);
+    }
+
+    GzipIndex build() throws IOException {
+      boolean first = true;
+      while (readHeader(first)) {
+        first = false;
+        memberStart = outputCount;
+        crc.reset();
+        crcCount = outputCount;
+        checkpoint(null);
+        long lastCheckpoint = outputCount;
+
+        boolean last;
+        do {
+          if (outputCount - lastCheckpoint >= interval) {
+            checkpoint(window());
+            lastCheckpoint = outputCount;
+          }
+          last = bits(1) == 1;
+          switch (bits(2)) {
+            case 0:
+              stored();
+              break;
+            case 1:
+              if (fixedLiterals == null) {
+                fixedCodes();
+              }
+              codes(fixedLiterals, fixedDistances);
+              break;
+            case 2:
+              dynamic();
+              break;
+            default:
+              throw new ZipException("invalid block type");
+          }
+        } while (!last);
+
+        updateCrc();
+        alignToByte();
+        if (readInt() != (int) crc.getValue()) {
+          throw new ZipException("corrupt gzip: CRC-32 mismatch");
+        }
+        if (readInt() != (int) (outputCount - memberStart)) {
+          throw new ZipException("corrupt gzip: length mismatch");
+        }
+      }
+      return new GzipIndex(outputCount, Arrays.copyOf(positions, checkpointCount),
+          Arrays.copyOf(bits, checkpointCount), Arrays.copyOf(windows, checkpointCount));
+    }
+
+    /**
+     * Reads a member header. Returns false at the end of the file, or at trailing bytes that
+     * aren't a member, which are ignored like {@link java.util.zip.GZIPInputStream} does.
+     */
+    private boolean readHeader(boolean first) throws IOException {
+      if (!first && bitCount == 0 && !refill()) {
+        return false;
+      }
+      if (readByte() != 0x1f || readByte() != 0x8b) {
+        if (first) {
+          throw new ZipException("not in gzip format");
+        }
+        return false;
+      }
+      if (readByte() != 8) {
+        throw new ZipException("unsupported compression method");
+      }
+      int flags = readByte();
+      for (int i = 0; i < 6; i++) {
+        readByte(); // modification time, extra flags and operating system
+      }
+      if ((flags & 4) != 0) {
+        int extraLength = readByte() | readByte() << 8;
+        for (int i = 0; i < extraLength; i++) {
+          readByte();
+        }
+      }
+      if ((flags & 8) != 0) {
+        while (readByte() != 0) {} // file name
+      }
+      if ((flags & 16) != 0) {
+        while (readByte() != 0) {} // comment
+      }
+      if ((flags & 2) != 0) {
+        readByte(); // header CRC
+        readByte();
+      }
+      return true;
+    }
+
+    private void checkpoint(byte[] window) {
+      if (checkpointCount == positions.length) {
+        positions = Arrays.copyOf(positions, checkpointCount * 2);
+        bits = Arrays.copyOf(bits, checkpointCount * 2);
+        windows = Arrays.copyOf(windows, checkpointCount * 2);
+      }
+      positions[checkpointCount] = outputCount;
+      bits[checkpointCount] = (inputStart + input.position()) * 8 - bitCount;
+      windows[checkpointCount] = window;
+      checkpointCount++;
+    }
+
+    /**
+     * Returns the member's output preceding the current position, up to 32 KiB.
+     */
+    private byte[] window() {
+      int length = (int) Math.min(WINDOW_SIZE, outputCount - memberStart);
+      byte[] result = new byte[length];
+      for (int i = 0; i < length; i++) {
+        result[i] = output[(int) (outputCount - length + i) & OUTPUT_MASK];
+      }
+      return result;
+    }
+
+    private void stored() throws IOException {
+      alignToByte();
+      int length = bits(16);
+      if (length != (~bits(16) & 0xffff)) {
+        throw new ZipException("invalid stored block length");
+      }
+      for (int i = 0; i < length; i++) {
+        write((byte) bits(8));
+      }
+    }
+
+    private void fixedCodes() throws ZipException {
+      int[] lengths = new int[288];
+      Arrays.fill(lengths, 0, 144, 8);
+      Arrays.fill(lengths, 144, 256, 9);
+      Arrays.fill(lengths, 256, 280, 7);
+      Arrays.fill(lengths, 280, 288, 8);
+      fixedLiterals = new Huffman(lengths, 0, 288);
+      Arrays.fill(lengths, 0, 30, 5);
+      fixedDistances = new Huffman(lengths, 0, 30);
+    }
+
+    private void dynamic() throws IOException {
+      int literalCount = bits(5) + 257;
+      int distanceCount = bits(5) + 1;
+      int codeLengthCount = bits(4) + 4;
+      int[] lengths = new int[19];
+      for (int i = 0; i < codeLengthCount; i++) {
+        lengths[CODE_LENGTH_ORDER[i]] = bits(3);
+      }
+      Huffman codeLengths = new Huffman(lengths, 0, 19);
+
+      lengths = new int[literalCount + distanceCount];
+      for (int i = 0; i < lengths.length; ) {
+        int symbol = decode(codeLengths);
+        int repeat;
+        int value = 0;
+        if (symbol < 16) {
+          lengths[i++] = symbol;
+          continue;
+        } else if (symbol == 16) {
+          if (i == 0) {
+            throw new ZipException("invalid code lengths: repeat with no previous length");
+          }
+          value = lengths[i - 1];
+          repeat = 3 + bits(2);
+        } else if (symbol == 17) {
+          repeat = 3 + bits(3);
+        } else {
+          repeat = 11 + bits(7);
+        }
+        if (i + repeat > lengths.length) {
+          throw new ZipException("invalid code lengths: too many lengths");
+        }
+        while (repeat-- > 0) {
+          lengths[i++] = value;
+        }
+      }
+      if (lengths[256] == 0) {
+        throw new ZipException("invalid code lengths: missing end of block code");
+      }
+      codes(new Huffman(lengths, 0, literalCount),
+          new Huffman(lengths, literalCount, distanceCount));
+    }
+
+    private void codes(Huffman literals, Huffman distances) throws IOException {
+      while (true) {
+        int symbol = decode(literals);
+        if (symbol < 256) {
+          write((byte) symbol);
+        } else if (symbol == 256) {
+          return;
+        } else {
+          symbol -= 257;
+          if (symbol >= 29) {
+            throw new ZipException("invalid literal/length code");
+          }
+          int length = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+          int distanceSymbol = decode(distances);
+          if (distanceSymbol >= 30) {
+            throw new ZipException("invalid distance code");
+          }
+          int distance = DISTANCE_BASE[distanceSymbol] + bits(DISTANCE_EXTRA[distanceSymbol]);
+          if (distance > outputCount - memberStart) {
+            throw new ZipException("invalid distance too far back");
+          }
+          for (int i = 0; i < length; i++) {
+            write(output[(int) (outputCount - distance) & OUTPUT_MASK]);
+          }
+        }
+      }
+    }
+
+    private void write(byte b) {
+      output[(int) outputCount & OUTPUT_MASK] = b;
+      outputCount++;
+      if (outputCount - crcCount == WINDOW_SIZE) {
+        updateCrc();
+      }
+    }
+
+    /**
+     * Adds the output since the CRC was last updated. That output is never more than half of
+     * the output buffer, so it hasn't been overwritten.
+     */
+    private void updateCrc() {
+      while (crcCount < outputCount) {
+        int offset = (int) crcCount & OUTPUT_MASK;
+        int count = (int) Math.min(outputCount - crcCount, output.length - offset);
+        crc.update(output, offset, count);
+        crcCount += count;
+      }
+    }
+
+    private int decode(Huffman huffman) throws IOException {
+      need(huffman.maxLength);
+      int entry = huffman.table[(int) bitBuffer & ((1 << huffman.maxLength) - 1)];
+      int length = entry & 0xf;
+      if (length == 0) {
+        throw new ZipException("invalid Huffman code");
+      }
+      bitBuffer >>>= length;
+      bitCount -= length;
+      return entry >>> 4;
+    }
+
+    private int bits(int count) throws IOException {
+      need(count);
+      int result = (int) bitBuffer & ((1 << count) - 1);
+      bitBuffer >>>= count;
+      bitCount -= count;
+      return result;
+    }
+
+    /**
+     * Buffers at least {@code count} bits. Every member ends with an 8 byte trailer, so running
+     * out of input here means the file is truncated.
+     */
+    private void need(int count) throws IOException {
+      while (bitCount < count) {
+        if (!refill()) {
+          throw new EOFException("truncated gzip");
+        }
+        bitBuffer |= (long) (input.get() & 0xff) << bitCount;
+        bitCount += 8;
+      }
+    }
+
+    private void alignToByte() {
+      bitBuffer >>>= bitCount & 7;
+      bitCount -= bitCount & 7;
+    }
+
+    private int readByte() throws IOException {
+      return bits(8);
+    }
+
+    private int readInt() throws IOException {
+      return bits(16) | bits(16) << 16;
+    }
+
+    /**
+     * Reads more input if it's all been consumed. Returns false at the end of the file.
+     */
+    private boolean refill() throws IOException {
+      if (input.hasRemaining()) {
+        return true;
+      }
+      inputStart += input.limit();
+      input.clear();
+      while (input.position() == 0) {
+        if (channel.read(input, inputStart) == -1) {
+          input.limit(0);
+          return false;
+        }
+      }
+      input.flip();
+      return true;
+    }
+  }
+
+  /**
+   * A canonical Huffman code as a table indexed by the next {@code maxLength} bits of input. Each
+   * entry holds the symbol shifted left by four, and its code's length in the low four bits; an
+   * entry with a length of zero isn't a valid code.
+   */
+  private static final class Huffman {
+    final int maxLength;
+    final int[] table;
+
+    Huffman(int[] lengths, int offset, int count) throws ZipException {
+      int[] lengthCounts = new int[16];
+      int maxLength = 0;
+      for (int i = 0; i < count; i++) {
+        lengthCounts[lengths[offset + i]]++;
+        maxLength = Math.max(maxLength, lengths[offset + i]);
+      }
+      lengthCounts[0] = 0;
+
+      int[] nextCode = new int[16];
+      int code = 0;
+      int left = 1;
+      for (int length = 1; length < 16; length++) {
+        code = (code + lengthCounts[length - 1]) << 1;
+        nextCode[length] = code;
+        left = (left << 1) - lengthCounts[length];
+        if (left < 0) {
+          throw new ZipException("invalid Huffman code: over-subscribed");
+        }
+      }
+
+      this.maxLength = maxLength;
+      this.table = new int[1 << maxLength];
+      for (int symbol = 0; symbol < count; symbol++) {
+        int length = lengths[offset + symbol];
+        if (length == 0) {
+          continue;
+        }
+        // codes are packed starting with their most significant bit; the table is indexed by
+        // bits in the order they're read, so reverse each code
+        int reversed = Integer.reverse(nextCode[length]++) >>> (32 - length);
+        for (int i = reversed; i < table.length; i += 1 << length) {
+          table[i] = symbol << 4 | length;
+        }
+      }
+    }
+  }
+}
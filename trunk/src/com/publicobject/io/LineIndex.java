@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The positions at which lines start in a file. A line ends after each {@code '\n'}. The index is
+ * extended on demand to cover the positions that have been looked up, so a file is only scanned
+ * as far as its last lookup, and only once; each lookup is then a binary search.
+ *
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+final class LineIndex {
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  private final ByteSource source;
+  private long[] starts = new long[1024];
+  private int lineCount = 1;
+  /** Every line that starts at or before this position is indexed. */
+  private long scanned;
+
+  LineIndex(ByteSource source) {
+    this.source = source;
+  }
+
+  /**
+   * Returns the zero-based number of the line holding the byte at {@code position}.
+   */
+  synchronized long line(long position) throws IOException {
+    extendTo(position);
+    int index = Arrays.binarySearch(starts, 0, lineCount, position);
+    return index >= 0 ? index : -index - 2;
+  }
+
+  /**
+   * Returns the position of the first byte of the zero-based {@code line}.
+   */
+  synchronized long lineStart(long line) {
+    if (line < 0 || line >= lineCount) {
+      throw new IndexOutOfBoundsException("line " + line + " isn't indexed");
+    }
+    return starts[(int) line];
+  }
+
+  private void extendTo(long position) throws IOException {
+    if (position <= scanned) {
+      return;
+    }
+    byte[] block = new byte[(int) Math.min(BLOCK_SIZE, position - scanned)];
+    while (scanned < position) {
+      int count = (int) Math.min(block.length, position - scanned);
+      source.read(scanned, block, 0, count);
+      for (int i = 0; i < count; i++) {
+        if (block[i] == '\n') {
+          if (lineCount == starts.length) {
+            starts = Arrays.copyOf(starts, lineCount * 2);
+          }
+          starts[lineCount++] = scanned + i + 1;
+        }
+      }
+      scanned += count;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps a file into memory as a chain of fixed-size segments. A single {@link MappedByteBuffer} is
+ * limited to 2 GB, so larger files span several segments; a byte's segment is found by shifting
+ * its position.
+ *
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+final class MappedByteSource implements ByteSource {
+
+  /** Segments are 1 GB so that segment sizes and offsets always fit in an int. */
+  static final int DEFAULT_SEGMENT_SHIFT = 30;
+
+  private final int segmentShift;
+  private final long segmentMask;
+  private final long length;
+  private MappedByteBuffer[] segments;
+
+  MappedByteSource(File file) throws IOException {
+    this(file, DEFAULT_SEGMENT_SHIFT);
+  }
+
+  MappedByteSource(File file, int segmentShift) throws IOException {
+    if (segmentShift < 1 || segmentShift > DEFAULT_SEGMENT_SHIFT) {
+      throw new IllegalArgumentException("segmentShift out of range: " + segmentShift);
+    }
+    this.segmentShift = segmentShift;
+    this.segmentMask = (1L << segmentShift) - 1;
+
+    RandomAccessFile randomAccess = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccess.getChannel();
+      length = channel.size();
+      int segmentCount = (int) ((length + segmentMask) >>> segmentShift);
+      segments = new MappedByteBuffer[segmentCount];
+      for (int i = 0; i < segmentCount; i++) {
+        long segmentStart = (long) i << segmentShift;
+        long segmentSize = Math.min(length - segmentStart, 1L << segmentShift);
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentSize);
+      }
+    } finally {
+      // the mappings remain valid after the channel is closed
+      randomAccess.close();
+    }
+  }
+
+  public long length() {
+    return length;
+  }
+
+  public int get(long position) {
+    return segments[(int) (position >>> segmentShift)].get((int) (position & segmentMask)) & 0xff;
+  }
+
+  public void read(long position, byte[] bytes, int offset, int count) {
+    while (count > 0) {
+      // duplicate so concurrent readers never share a buffer position
+      ByteBuffer segment = segments[(int) (position >>> segmentShift)].duplicate();
+      int segmentOffset = (int) (position & segmentMask);
+      int chunk = Math.min(count, segment.limit() - segmentOffset);
+      segment.position(segmentOffset);
+      segment.get(bytes, offset, chunk);
+      position += chunk;
+      offset += chunk;
+      count -= chunk;
+    }
+  }
+
+  /**
+   * Releases this source's references to its mappings. The mapped memory is returned to the
+   * operating system once the buffers are garbage collected.
+   */
+  public void close() {
+    segments = new MappedByteBuffer[0];
+  }
+}
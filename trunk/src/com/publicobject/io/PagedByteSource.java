@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads a file in fixed-size pages and keeps the most recently used pages in memory. Regular
+ * expressions that backtrack over a small region are served from the cache rather than the file.
+ *
+ * <p>Each thread gets its own cache so that concurrent readers never contend on a lock. The
+ * delegate must support concurrent reads. The caches of threads that have died are dropped when
+ * another thread first reads, so a pool that replaces its threads doesn't grow this without
+ * bound; until then each holds up to {@code pageCount} pages.
+ *
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+final class PagedByteSource implements ByteSource {
+
+  private final ByteSource delegate;
+  private final int pageSize;
+  private final int pageCount;
+  private final List<PageCache> caches = new CopyOnWriteArrayList<PageCache>();
+  /** The counts of the caches that were dropped because their threads died. */
+  private final AtomicLong retiredHitCount = new AtomicLong();
+  private final AtomicLong retiredMissCount = new AtomicLong();
+
+  private final ThreadLocal<PageCache> threadCache = new ThreadLocal<PageCache>() {
+    @Override protected PageCache initialValue() {
+      dropDeadCaches();
+      PageCache cache = new PageCache(Thread.currentThread());
+      caches.add(cache);
+      return cache;
+    }
+  };
+
+  PagedByteSource(ByteSource delegate, int pageSize, int pageCount) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize < 1: " + pageSize);
+    }
+    if (pageCount < 1) {
+      throw new IllegalArgumentException("pageCount < 1: " + pageCount);
+    }
+    this.delegate = delegate;
+    this.pageSize = pageSize;
+    this.pageCount = pageCount;
+  }
+
+  public long length() {
+    return delegate.length();
+  }
+
+  public int get(long position) throws IOException {
+    return threadCache.get().page(position / pageSize)[(int) (position % pageSize)] & 0xff;
+  }
+
+  public void read(long position, byte[] bytes, int offset, int count) throws IOException {
+    PageCache cache = threadCache.get();
+    while (count > 0) {
+      int pageOffset = (int) (position % pageSize);
+      byte[] page = cache.page(position / pageSize);
+      int chunk = Math.min(count, page.length - pageOffset);
+      System.arraycopy(page, pageOffset, bytes, offset, chunk);
+      position += chunk;
+      offset += chunk;
+      count -= chunk;
+    }
+  }
+
+  /**
+   * Drops the caches of threads that have died, keeping their counts.
+   */
+  private void dropDeadCaches() {
+    for (PageCache cache : caches) {
+      if (!cache.owner.isAlive() && caches.remove(cache)) {
+        retiredHitCount.addAndGet(cache.hitCount);
+        retiredMissCount.addAndGet(cache.missCount);
+        cache.clear();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of reads served from memory. This is a sum over all threads' caches, so it
+   * is approximate while other threads are reading.
+   */
+  long hitCount() {
+    long result = retiredHitCount.get();
+    for (PageCache cache : caches) {
+      result += cache.hitCount;
+    }
+    return result;
+  }
+
+  long missCount() {
+    long result = retiredMissCount.get();
+    for (PageCache cache : caches) {
+      result += cache.missCount;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of threads' caches held, including those of threads that have died since
+   * a thread last started reading.
+   */
+  int cacheCount() {
+    return caches.size();
+  }
+
+  public void close() throws IOException {
+    for (PageCache cache : caches) {
+      cache.clear();
+    }
+    delegate.close();
+  }
+
+  /**
+   * An LRU cache of pages, confined to a single thread. Only its counts are read by others.
+   */
+  private final class PageCache extends LinkedHashMap<Long, byte[]> {
+    private static final long serialVersionUID = 0;
+
+    private final transient Thread owner;
+
+    /** The most recently used page, checked before the map so sequential scans skip the lookup. */
+    private long lastPageIndex = -1;
+    private byte[] lastPage;
+
+    /** Written only by the owner; volatile so that other threads' sums see current counts. */
+    private volatile long hitCount;
+    private volatile long missCount;
+
+    PageCache(Thread owner) {
+      super(pageCount * 4 / 3 + 1, 0.75f, true);
+      this.owner = owner;
+    }
+
+    @Override protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+      return size() > pageCount;
+    }
+
+    byte[] page(long pageIndex) throws IOException {
+      if (pageIndex == lastPageIndex) {
+        hitCount++;
+        return lastPage;
+      }
+
+      byte[] page = get(pageIndex);
+      if (page != null) {
+        hitCount++;
+      } else {
+        missCount++;
+        long pageStart = pageIndex * pageSize;
+        page = new byte[(int) Math.min(pageSize, delegate.length() - pageStart)];
+        delegate.read(pageStart, page, 0, page.length);
+        put(pageIndex, page);
+      }
+
+      lastPageIndex = pageIndex;
+      lastPage = page;
+      return page;
+    }
+
+    @Override public void clear() {
+      super.clear();
+      lastPageIndex = -1;
+      lastPage = null;
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the capturing groups and numbered backreferences of a regular expression, which {@link
+ * Pattern} doesn't expose. Like Pattern, this skips escapes, {@code \Q..\E} quotes, character
+ * classes and, in {@link Pattern#COMMENTS} mode, whitespace and {@code #} comments.
+ *
+ * <p>The Strip script has the only other copy of this, as Strip.PatternSyntax, since it's
+ * compiled on its own; change both together.
+ *
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+final class PatternSyntax {
+  private PatternSyntax() {}
+
+  /**
+   * Returns the numbers of the named groups in {@code pattern}.
+   *
+   * @throws IllegalArgumentException if the groups found aren't the ones Pattern finds.
+   */
+  static Map<String, Integer> groupNames(Pattern pattern) {
+    Map<String, Integer> result = new HashMap<String, Integer>();
+    if ((pattern.flags() & Pattern.LITERAL) == 0) {
+      scan(pattern.pattern(), pattern.flags(), 0, result);
+    }
+    return result;
+  }
+
+  /**
+   * Returns {@code regex} with its numbered backreferences shifted by {@code offset}, the
+   * number of groups that precede it in an alternation. Named backreferences are unaffected.
+   * A quote or comment that runs to the end of {@code regex} is closed, so that more pattern
+   * can follow it.
+   *
+   * @throws IllegalArgumentException if the groups found aren't the ones Pattern finds.
+   */
+  static String renumberBackreferences(String regex, int offset) {
+    return scan(regex, 0, offset, new HashMap<String, Integer>());
+  }
+
+  /**
+   * Returns {@code regex} with its numbered backreferences shifted by {@code offset}, and puts
+   * the number of each named group in {@code groupNames}.
+   */
+  private static String scan(String regex, int flags, int offset, Map<String, Integer> groupNames) {
+    int groupCount = Pattern.compile(regex, flags).matcher("").groupCount();
+    StringBuilder result = new StringBuilder();
+    int group = 0;
+    int classDepth = 0;
+    // whether whitespace and comments are ignored, in each enclosing group
+    boolean[] comments = new boolean[regex.length() + 1];
+    int depth = 0;
+    comments[0] = (flags & Pattern.COMMENTS) != 0;
+    for (int i = 0; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (c == '\\' && i + 1 < regex.length()) {
+        char e = regex.charAt(i + 1);
+        if (e == 'Q') {
+          int end = regex.indexOf("\\E", i + 2);
+          if (end == -1) {
+            result.append(regex, i, regex.length()).append("\\E");
+            break;
+          }
+          result.append(regex, i, end + 2);
+          i = end + 1;
+        } else if (classDepth == 0 && e >= '1' && e <= '9') {
+          // like Pattern, take more digits only while they name a group opened before this
+          int reference = e - '0';
+          for (i += 2; i < regex.length(); i++) {
+            int digit = regex.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || reference * 10 + digit > group) {
+              break;
+            }
+            reference = reference * 10 + digit;
+          }
+          i--;
+          // the group keeps following digits from being read as part of the reference
+          result.append("(?:\\").append(reference + offset).append(')');
+        } else {
+          result.append(c).append(e);
+          i++;
+        }
+      } else if (c == '#' && comments[depth]) {
+        int end = endOfComment(regex, i);
+        result.append(regex, i, end);
+        if (end == regex.length()) {
+          result.append('\n');
+        }
+        i = end - 1;
+      } else if (c == '[') {
+        classDepth++;
+        result.append(c);
+        // as in Pattern, a ']' first in a class, or first after its '^', is a literal
+        if (regex.startsWith("^", i + 1)) {
+          result.append(regex.charAt(++i));
+        }
+        if (regex.startsWith("]", i + 1)) {
+          result.append(regex.charAt(++i));
+        }
+      } else if (c == '(' && classDepth == 0) {
+        boolean groupComments = comments[depth];
+        int next = groupComments ? skipWhitespace(regex, i + 1) : i + 1;
+        if (!regex.startsWith("?", next)) {
+          group++;
+        } else if (regex.startsWith("?<", next)
+            && !regex.startsWith("?<=", next) && !regex.startsWith("?<!", next)) {
+          group++;
+          groupNames.put(regex.substring(next + 2, regex.indexOf('>', next)), group);
+        } else {
+          // flags apply to the rest of the enclosing group, or after a ':' to their own group
+          int end = next + 1;
+          boolean on = true;
+          for (; end < regex.length() && "idmsuxU-".indexOf(regex.charAt(end)) != -1; end++) {
+            if (regex.charAt(end) == '-') {
+              on = false;
+            } else if (regex.charAt(end) == 'x') {
+              groupComments = on;
+            }
+          }
+          if (end < regex.length() && regex.charAt(end) == ')') {
+            comments[depth] = groupComments;
+            result.append(regex, i, end + 1);
+            i = end;
+            continue;
+          }
+        }
+        comments[++depth] = groupComments;
+        result.append(c);
+      } else {
+        if (c == ']' && classDepth > 0) {
+          classDepth--;
+        } else if (c == ')' && classDepth == 0 && depth > 0) {
+          depth--;
+        }
+        result.append(c);
+      }
+    }
+    if (group != groupCount) {
+      throw new IllegalArgumentException("Can't find the groups of " + regex);
+    }
+    return result.toString();
+  }
+
+  /**
+   * Returns the index of the line terminator that ends the comment at {@code start}, or the
+   * length of {@code regex} if there is none.
+   */
+  private static int endOfComment(String regex, int start) {
+    int i = start;
+    while (i < regex.length() && "\n\r\u0085\u2028\u2029".indexOf(regex.charAt(i)) == -1) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Returns the index of the first character at or after {@code start} that isn't whitespace
+   * or in a comment.
+   */
+  private static int skipWhitespace(String regex, int start) {
+    int i = start;
+    while (i < regex.length()) {
+      char c = regex.charAt(i);
+      if (c == '#') {
+        i = endOfComment(regex, i);
+      } else if (" \t\n\u000B\f\r".indexOf(c) != -1) {
+        i++;
+      } else {
+        break;
+      }
+    }
+    return i;
+  }
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads a file in blocks, fetching the block after the one being read in the background. While a
+ * matcher scans one block the disk is already busy with the next, so a forward scan of a cold
+ * file waits on I/O only when matching outruns the disk, rather than at every block.
+ *
+ * <p>Each thread gets its own cursor of three blocks: the one being read, the one after it that's
+ * being fetched, and the one before it, which is kept so that backtracking across a block
+ * boundary doesn't go back to the file. Reading ahead only follows a move to the next block, so
+ * random reads fetch only the blocks they need; {@link PagedByteSource} with small pages suits
+ * those better anyway. The cursors of threads that have died are dropped when another thread
+ * first reads, so a pool that replaces its threads doesn't grow this without bound; until then
+ * each holds up to three blocks.
+ *
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+final class ReadAheadByteSource implements ByteSource {
+
+  private final AsynchronousFileChannel channel;
+  private final long length;
+  private final int blockSize;
+  private final List<Cursor> cursors = new CopyOnWriteArrayList<Cursor>();
+  /** The waits of the cursors that were dropped because their threads died. */
+  private final AtomicLong retiredWaitCount = new AtomicLong();
+
+  private final ThreadLocal<Cursor> threadCursor = new ThreadLocal<Cursor>() {
+    @Override protected Cursor initialValue() {
+      dropDeadCursors();
+      Cursor cursor = new Cursor(Thread.currentThread());
+      cursors.add(cursor);
+      return cursor;
+    }
+  };
+
+  ReadAheadByteSource(File file, int blockSize) throws IOException {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("blockSize < 1: " + blockSize);
+    }
+    this.channel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ);
+    this.length = channel.size();
+    this.blockSize = blockSize;
+  }
+
+  public long length() {
+    return length;
+  }
+
+  public int get(long position) throws IOException {
+    if (position < 0 || position >= length) {
+      return -1;
+    }
+    return threadCursor.get().block(position / blockSize).bytes[(int) (position % blockSize)]
+        & 0xff;
+  }
+
+  public void read(long position, byte[] bytes, int offset, int count) throws IOException {
+    if (position < 0 || position + count > length) {
+      throw new EOFException("position " + position + " for length " + length);
+    }
+    Cursor cursor = threadCursor.get();
+    while (count > 0) {
+      int blockOffset = (int) (position % blockSize);
+      Block block = cursor.block(position / blockSize);
+      int chunk = Math.min(count, block.length - blockOffset);
+      System.arraycopy(block.bytes, blockOffset, bytes, offset, chunk);
+      position += chunk;
+      offset += chunk;
+      count -= chunk;
+    }
+  }
+
+  /**
+   * Drops the cursors of threads that have died, keeping their wait counts.
+   */
+  private void dropDeadCursors() {
+    for (Cursor cursor : cursors) {
+      if (!cursor.owner.isAlive() && cursors.remove(cursor)) {
+        retiredWaitCount.addAndGet(cursor.waitCount);
+        cursor.clear();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of times a thread had to wait for a block: either read-ahead hadn't
+   * finished when the block was needed, or the read wasn't sequential. This is a sum over all
+   * threads, so it is approximate while other threads are reading.
+   */
+  long waitCount() {
+    long result = retiredWaitCount.get();
+    for (Cursor cursor : cursors) {
+      result += cursor.waitCount;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of bytes held in blocks by all threads' cursors. This is approximate while
+   * other threads are reading.
+   */
+  long blockBytes() {
+    long result = 0;
+    for (Cursor cursor : cursors) {
+      result += cursor.blockBytes();
+    }
+    return result;
+  }
+
+  public void close() throws IOException {
+    // outstanding reads fail with AsynchronousCloseException, which nobody waits for
+    channel.close();
+    // each thread's cursor stays reachable from the ThreadLocal; drop what it holds
+    for (Cursor cursor : cursors) {
+      cursor.clear();
+    }
+  }
+
+  /**
+   * A block of the file, which may still be being read into. Its bytes are allocated by the first
+   * fetch.
+   */
+  private final class Block {
+    byte[] bytes;
+    long index = -1;
+    int length;
+    ByteBuffer buffer;
+    Future<Integer> pending;
+
+    /**
+     * Starts reading the block at {@code index} into this.
+     */
+    void fetch(long index) {
+      if (bytes == null) {
+        bytes = new byte[blockSize];
+      }
+      this.index = index;
+      long start = index * blockSize;
+      length = (int) Math.max(0, Math.min(blockSize, ReadAheadByteSource.this.length - start));
+      buffer = ByteBuffer.wrap(bytes, 0, length);
+      pending = length > 0 ? channel.read(buffer, start) : null;
+    }
+
+    /**
+     * Waits for this block's read to complete, reading the rest if it came up short.
+     */
+    void await() throws IOException {
+      long start = index * blockSize;
+      try {
+        while (pending != null) {
+          if (pending.get() == -1) {
+            throw new EOFException("file truncated to " + (start + buffer.position()));
+          }
+          pending = buffer.hasRemaining()
+              ? channel.read(buffer, start + buffer.position())
+              : null;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      } catch (ExecutionException e) {
+        index = -1; // don't serve a partial block
+        pending = null;
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      }
+    }
+
+    boolean isDone() {
+      return pending == null || pending.isDone() && !buffer.hasRemaining();
+    }
+
+    /**
+     * Forgets this block, releasing its bytes.
+     */
+    void clear() {
+      index = -1;
+      bytes = null;
+      buffer = null;
+      pending = null;
+    }
+  }
+
+  /**
+   * A thread's blocks, confined to that thread. Only its wait count is read by others.
+   */
+  private final class Cursor {
+    private final Thread owner;
+    private Block previous = new Block();
+    private Block current = new Block();
+    private Block next = new Block();
+    /** Written only by the owner; volatile so that other threads' sums see the current count. */
+    private volatile long waitCount;
+
+    Cursor(Thread owner) {
+      this.owner = owner;
+    }
+
+    Block block(long index) throws IOException {
+      if (index == current.index) {
+        return current;
+      } else if (index == previous.index) {
+        return previous;
+      }
+
+      boolean sequential = index == current.index + 1;
+      if (index == next.index) {
+        // the block is already on its way
+        if (!next.isDone()) {
+          waitCount++;
+        }
+      } else {
+        waitCount++;
+        if (next.pending != null && !next.pending.isDone()) {
+          next = new Block(); // the abandoned read still owns its buffer
+        }
+        next.fetch(index);
+      }
+      Block spare = previous;
+      previous = current;
+      current = next;
+      next = spare;
+      current.await();
+      if (sequential) {
+        next.fetch(index + 1);
+      }
+      return current;
+    }
+
+    long blockBytes() {
+      long result = 0;
+      for (Block block : new Block[] { previous, current, next }) {
+        result += block.bytes != null ? block.bytes.length : 0;
+      }
+      return result;
+    }
+
+    void clear() {
+      previous.clear();
+      current.clear();
+      next.clear();
+    }
+  }
+}
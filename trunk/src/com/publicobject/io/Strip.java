@@ -1,122 +1,3524 @@
-/*bin/mkdir /tmp/strip 2> /dev/null
-javac -d /tmp/strip $0
-java -cp /tmp/strip Strip "$@"
-exit
+/*bin/mkdir -p "${XDG_CACHE_HOME:-$HOME/.cache}/strip" 2> /dev/null
+# Compiles this file into a jar only when it has changed, then runs it with an AppCDS archive of
+# the classes the first run loaded, so that startup doesn't cost a compile and a cold class load.
+# The jar and the archive are named for a checksum of this file, so each copy or revision of it
+# runs its own build; builds over a week old are deleted whenever a new one is made.
+# String concatenation is compiled inline since bootstrapping invokedynamic is slow to start.
+cache="${XDG_CACHE_HOME:-$HOME/.cache}/strip"
+key=$(cksum < "$0" | tr ' ' -)
+jar="$cache/strip-$key.jar"
+jsa="$cache/strip-$key.jsa"
+if [ ! -f "$jar" ]; then
+  find "$cache" -name 'strip-*' -mtime +7 -exec rm -f {} + 2> /dev/null
+  build=$(mktemp -d "$cache/build.XXXXXX") || exit 1
+  javac -XDstringConcat=inline -d "$build/classes" "$0" \
+      && jar cfe "$build/strip.jar" Strip -C "$build/classes" . \
+      && mv -f "$build/strip.jar" "$jar" \
+      && rm -f "$jsa"
+  status=$?
+  rm -rf "$build"
+  [ $status -eq 0 ] || exit $status
+fi
+jvm="-XX:+IgnoreUnrecognizedVMOptions -XX:+UseSerialGC -Xshare:auto -Xlog:cds=off -Xlog:cds+dynamic=off"
+if [ -f "$jsa" ]; then
+  exec java $jvm -XX:SharedArchiveFile="$jsa" -cp "$jar" Strip "$@"
+fi
+java $jvm -XX:ArchiveClassesAtExit="$jsa.$$" -cp "$jar" Strip "$@"
+status=$?
+mv -f "$jsa.$$" "$jsa" 2> /dev/null
+exit $status
 */
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 public class Strip {
 
-  private final Pattern pattern;
+  static final int DEFAULT_MAX_MATCH = 64 * 1024;
+  /** A matcher indexes by int, so files are matched through windows of at most this many bytes. */
+  static final long DEFAULT_WINDOW_SIZE = 1L << 30;
+  static final int SNIFF_SIZE = 8 * 1024;
+  static final long DEFAULT_DEBOUNCE_MILLIS = 500;
+  /** Files up to this size are stripped in memory; replacements may grow them to double. */
+  static final int SMALL_FILE_SIZE = 256 * 1024;
+  /** Small files are stripped into pooled direct buffers; this bounds them to 4 MiB. */
+  static final int MAX_DIRECT_BUFFERS = 8;
+  static final Set<String> VCS_DIRECTORIES =
+      new HashSet<String>(Arrays.asList(".git", ".hg", ".svn", "CVS"));
+
+  private final PatternSet patterns;
+  private final Prefilter prefilter;
   private final Set<File> files;
   private boolean clobber;
+  private int jobs = 1;
+  private long chunkSize;
+  private int maxMatch = DEFAULT_MAX_MATCH;
+  private long windowSize = DEFAULT_WINDOW_SIZE;
+  private Replacement replacement;
+  private Fsync fsync = Fsync.NONE;
+  private Index index;
+  private List<Glob> includes = Collections.emptyList();
+  private List<Glob> excludes = Collections.emptyList();
+  private boolean list;
+  private long timeoutMillis;
+  private long debounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+  private Stats stats;
+  private boolean printStats;
+  private File statsJson;
+  private PrintStream log = System.out;
+  private final OutputStream listing =
+      new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), Output.BUFFER_SIZE);
+
+  private int totalFiles;
+  private long totalMatches;
+  private long totalBytes;
+  private int skippedFiles;
+  private int timedOutFiles;
+  private final AtomicInteger binaryFiles = new AtomicInteger();
+  private final AtomicLongArray patternMatches;
+  private final BufferPool buffers = new BufferPool(SMALL_FILE_SIZE * 2, MAX_DIRECT_BUFFERS);
+
+  public Strip(Pattern pattern, Set<File> files, boolean clobber) {
+    this(PatternSet.of(pattern), files, clobber);
+  }
+
+  public Strip(PatternSet patterns, Set<File> files, boolean clobber) {
+    this.patterns = patterns;
+    this.prefilter = patterns.regex != null ? Prefilter.of(patterns.regex) : null;
+    this.files = files;
+    this.clobber = clobber;
+    this.patternMatches = new AtomicLongArray(patterns.sources.size());
+  }
+
+  private void strip() throws IOException {
+    long startNanos = System.nanoTime();
+    try {
+      stripAll();
+    } finally {
+      listing.flush();
+      if (index != null) {
+        index.save();
+      }
+    }
+    printSummary(startNanos);
+  }
+
+  private void stripAll() throws IOException {
+    Walker walker = new Walker();
+    walker.start();
+    if (jobs == 1) {
+      for (File file; (file = walker.next()) != null; ) {
+        report(stripFile(file));
+      }
+    } else {
+      // results are reported in submission order; at most 2 * jobs files are in flight at once
+      ForkJoinPool pool = new ForkJoinPool(jobs);
+      try {
+        Deque<Future<Result>> inFlight = new ArrayDeque<Future<Result>>();
+        for (File next; (next = walker.next()) != null; ) {
+          final File file = next;
+          if (inFlight.size() == jobs * 2) {
+            report(await(inFlight.removeFirst()));
+          }
+          inFlight.add(pool.submit(new Callable<Result>() {
+            public Result call() throws IOException {
+              return stripFile(file);
+            }
+          }));
+        }
+        while (!inFlight.isEmpty()) {
+          report(await(inFlight.removeFirst()));
+        }
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Strips the files in the directories as they're created or modified, until killed. Files that
+   * are already there are left alone.
+   */
+  private void watch() throws IOException, InterruptedException {
+    for (File file : files) {
+      if (!file.isDirectory()) {
+        throw new IllegalArgumentException("--watch needs directories, not " + file);
+      }
+    }
+    if (index != null) {
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override public void run() {
+          try {
+            index.save();
+          } catch (IOException e) {
+            System.err.println("Failed to save " + index.file + ": " + e);
+          }
+        }
+      });
+    }
+    log.println("Watching " + files.size() + " directories");
+    new Watcher().run();
+  }
+
+  /**
+   * Strips standard input to standard output. Reports go to standard error.
+   */
+  private void stripStream() throws IOException {
+    long startNanos = System.nanoTime();
+    log = System.err;
+    Result result = stripStream(new FileInputStream(FileDescriptor.in),
+        new FileOutputStream(FileDescriptor.out));
+    result.name = "-";
+    result.nanos = System.nanoTime() - startNanos;
+    report(result);
+    printSummary(startNanos);
+  }
+
+  private void printSummary(long startNanos) throws IOException {
+    long elapsedMillis = Math.max(1, (System.nanoTime() - startNanos) / 1000000);
+    log.println((list ? "Found " : "Stripped ") + totalMatches + " from " + totalFiles + " files, "
+        + totalBytes + " bytes in " + elapsedMillis + " ms ("
+        + (totalBytes * 1000 / elapsedMillis) + " bytes/s)");
+    if (index != null) {
+      log.println("Skipped " + skippedFiles + " files unchanged since they were last clean");
+    }
+    if (binaryFiles.get() > 0) {
+      log.println("Skipped " + binaryFiles.get() + " binary files");
+    }
+    if (timedOutFiles > 0) {
+      log.println("Timed out on " + timedOutFiles + " files, which were left unchanged");
+    }
+    if (patterns.sources.size() > 1) {
+      for (int i = 0; i < patterns.sources.size(); i++) {
+        log.println("  " + patternMatches.get(i) + "\t" + patterns.sources.get(i));
+      }
+    }
+    if (printStats) {
+      stats.print(log);
+    }
+    if (statsJson != null) {
+      stats.writeJson(statsJson, elapsedMillis, patterns, patternMatches);
+    }
+  }
+
+  /**
+   * Strips {@code in} to {@code out} in a single pass through a bounded window. The window is
+   * refilled whenever the scanner reports that more input could change its result; everything
+   * before the earliest position that could still start a match is written out immediately, so
+   * memory use is constant however long the input is.
+   *
+   * <p>When listing, the matches are written to {@code outputStream} instead of the stripped
+   * input, with lines counted as the window slides past them.
+   */
+  private Result stripStream(InputStream in, OutputStream outputStream) throws IOException {
+    StreamWindow window = new StreamWindow(Math.max(Output.BUFFER_SIZE, maxMatch * 2));
+    Output out = list ? new NullOutput() : new StreamOutput(window, outputStream);
+    LineCounter lines = new LineCounter();
+    Matches match = new Matches(recordedGroups());
+    Scanner scanner = new Scanner(window);
+    int numberFound = 0;
+    int position = 0; // the output is written up to here
+    int from = 0; // the next search starts here
+    boolean eof = !window.fill(in);
+
+    while (true) {
+      int length = window.length();
+      int safe; // where to slide the window to
+      if (from <= length && scanner.find(from, length)) {
+        if (eof || !scanner.mayChange(length)) {
+          match.clear();
+          scanner.record(match, window.base);
+          if (list) {
+            lines.advance(window, match.start(0));
+            list(listing, "-", lines.line, match.start(0) - lines.lineStart + 1,
+                window.buffer, (int) scanner.start, (int) (scanner.end - scanner.start));
+            patternMatches.incrementAndGet(match.pattern(0));
+            position = (int) scanner.end;
+          } else {
+            position = (int) (emit(out, window.base + position, match, 0) - window.base);
+          }
+          from = (int) scanner.nextSearch();
+          numberFound++;
+          continue;
+        }
+        // more input could extend or invalidate this match
+        safe = (int) Math.max(position, Math.min(scanner.start, length - maxMatch));
+        if (safe == 0 && window.isFull()) {
+          throw new IOException("Match at " + (window.base + scanner.start)
+              + " in stdin may be longer than --max-match " + maxMatch);
+        }
+
+      } else if (eof) {
+        out.copy(window.base + position, window.base + length);
+        break;
+
+      } else {
+        safe = from <= length ? (int) Math.max(position, scanner.safeEnd(length)) : position;
+      }
+
+      out.copy(window.base + position, window.base + safe);
+      out.flush();
+      lines.advance(window, window.base + safe);
+      eof = !window.fill(in, safe);
+      position = 0;
+      from = Math.max(0, from - safe);
+      scanner.reset();
+    }
+
+    out.close();
+    listing.flush();
+    Result result = new Result((list ? "Found " : "Stripped ") + numberFound + " from stdin",
+        numberFound, window.base + window.length());
+    result.charAtCount = window.charAtCount;
+    return result;
+  }
+
+  private Result stripFile(File file) throws IOException {
+    long size = file.length();
+    long modified = file.lastModified();
+    if (index != null && index.isClean(file, size, modified)) {
+      return Result.SKIPPED;
+    }
+
+    long startNanos = System.nanoTime();
+    long deadline = timeoutMillis > 0 ? startNanos + timeoutMillis * 1000000 : Long.MAX_VALUE;
+    Result result;
+    try {
+      if (list) {
+        result = listFile(file, deadline);
+      } else {
+        result = size <= SMALL_FILE_SIZE ? stripSmallFile(file, deadline) : null;
+        if (result == null) {
+          result = stripLargeFile(file, deadline);
+        }
+      }
+      updateIndex(file, size, modified, result.matches);
+    } catch (DeadlineExceededException e) {
+      result = new Result("Timed out after " + timeoutMillis + " ms at " + e.position + " in "
+          + file + ", left unchanged", 0, size);
+      result.timedOut = true;
+      if (index != null) {
+        index.forget(file);
+      }
+    }
+    result.name = file.toString();
+    result.nanos = System.nanoTime() - startNanos;
+    return result;
+  }
+
+  /**
+   * Strips a small file into a pooled buffer rather than through a temporary file. A clobbered
+   * file without matches isn't written at all; otherwise the output is written with a single
+   * call. Returns null if replacements grow the output past the buffer.
+   */
+  private Result stripSmallFile(File file, long deadline) throws IOException {
+    ByteBuffer buffer = buffers.take();
+    try {
+      FileCharSequence fileCharSequence = new FileCharSequence(file);
+      long bytes = fileCharSequence.longLength();
+      int numberFound;
+      try {
+        numberFound = strip(file, fileCharSequence,
+            new BufferOutput(fileCharSequence.channel(), buffer), deadline);
+      } catch (BufferOverflowException e) {
+        return null;
+      } finally {
+        fileCharSequence.close();
+      }
+      Result result;
+      if (numberFound == 0 && clobber) {
+        result = new Result("No occurrences in " + file, 0, bytes);
+        result.charAtCount = fileCharSequence.charAtCount;
+        return result;
+      }
+
+      File stripped = createTempFile(file);
+      FileChannel target = new FileOutputStream(stripped).getChannel();
+      try {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          target.write(buffer);
+        }
+        if (fsync != Fsync.NONE && clobber) {
+          target.force(true);
+        }
+      } finally {
+        target.close();
+      }
+      result = new Result(finish(file, stripped, numberFound), numberFound, bytes);
+      result.charAtCount = fileCharSequence.charAtCount;
+      return result;
+    } finally {
+      buffers.give(buffer);
+    }
+  }
+
+  private Result stripLargeFile(File file, long deadline) throws IOException {
+    FileCharSequence fileCharSequence = new FileCharSequence(file);
+    long bytes = fileCharSequence.longLength();
+    File stripped = createTempFile(file);
+    int numberFound;
+    boolean success = false;
+    try {
+      FileChannel target = new FileOutputStream(stripped).getChannel();
+      try {
+        Output out = new ChannelOutput(fileCharSequence.channel(), target);
+        numberFound = strip(file, fileCharSequence, out, deadline);
+        if (fsync != Fsync.NONE && clobber && numberFound > 0) {
+          target.force(true);
+        }
+        out.close();
+      } finally {
+        target.close();
+      }
+      success = true;
+    } finally {
+      fileCharSequence.close();
+      if (!success) {
+        stripped.delete();
+      }
+    }
+    Result result = new Result(finish(file, stripped, numberFound), numberFound, bytes);
+    result.charAtCount = fileCharSequence.charAtCount;
+    return result;
+  }
+
+  /**
+   * Strips {@code fileCharSequence} to {@code out}, returning the number of matches.
+   */
+  private int strip(File file, FileCharSequence fileCharSequence, Output out, long deadline)
+      throws IOException {
+    int numberFound = 0;
+    long position = 0;
+    long length = fileCharSequence.longLength();
+    if (chunkSize > 0 && length > chunkSize) {
+      Matches matches = findInChunks(file, fileCharSequence, deadline);
+      for (int i = 0; i < matches.size(); i++) {
+        position = emit(out, position, matches, i);
+        numberFound++;
+      }
+    } else {
+      Matches match = new Matches(recordedGroups());
+      FileScanner scanner = new FileScanner(file, fileCharSequence, deadline);
+      for (long from = 0; scanner.find(from, length + 1); ) {
+        match.clear();
+        scanner.record(match);
+        position = emit(out, position, match, 0);
+        numberFound++;
+        from = scanner.nextSearch();
+      }
+    }
+    out.copy(position, length);
+    out.flush();
+    return numberFound;
+  }
+
+  /**
+   * Moves the stripped copy over the original when clobbering, and returns the message to log.
+   */
+  private String finish(File file, File stripped, int numberFound) throws IOException {
+    if (numberFound > 0) {
+      if (clobber) {
+        replace(stripped, file);
+        return "Stripped " + numberFound + " from " + file;
+      } else {
+        return "Stripped " + numberFound + " from " + file + " at " + stripped;
+      }
+    } else if (clobber) {
+      stripped.delete();
+      return "No occurrences in " + file;
+    } else {
+      return "No occurrences in " + file + ", stripped file is " + stripped;
+    }
+  }
+
+  /**
+   * Lists each match in {@code file} as {@code file:line:column:match}, without writing a
+   * stripped copy. Lines and columns count from 1; columns are in bytes.
+   */
+  private Result listFile(File file, long deadline) throws IOException {
+    FileCharSequence fileCharSequence = new FileCharSequence(file);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    String name = file.toString();
+    int numberFound = 0;
+    try {
+      Matches matches = new Matches(0);
+      long length = fileCharSequence.longLength();
+      if (chunkSize > 0 && length > chunkSize) {
+        matches = findInChunks(file, fileCharSequence, deadline);
+      } else {
+        FileScanner scanner = new FileScanner(file, fileCharSequence, deadline);
+        for (long from = 0; scanner.find(from, length + 1); ) {
+          scanner.record(matches);
+          from = scanner.nextSearch();
+        }
+      }
+      for (int i = 0; i < matches.size(); i++) {
+        long start = matches.start(i);
+        long end = matches.end(i);
+        byte[] match = fileCharSequence.window(start, end).toString().getBytes("ISO-8859-1");
+        list(out, name, fileCharSequence.lineNumber(start),
+            fileCharSequence.columnNumber(start), match, 0, match.length);
+        patternMatches.incrementAndGet(matches.pattern(i));
+      }
+      numberFound = matches.size();
+    } finally {
+      fileCharSequence.close();
+    }
+    Result result = new Result(null, out.toByteArray(), numberFound,
+        fileCharSequence.longLength());
+    result.charAtCount = fileCharSequence.charAtCount;
+    return result;
+  }
+
+  /**
+   * Writes a match as a line of {@code file:line:column:match}. The match's bytes are written
+   * as they are in the input.
+   */
+  private static void list(OutputStream out, String name, long line, long column,
+      byte[] bytes, int offset, int count) throws IOException {
+    out.write((name + ":" + line + ":" + column + ":").getBytes());
+    out.write(bytes, offset, count);
+    out.write('\n');
+  }
+
+  private void updateIndex(File file, long size, long modified, int numberFound)
+      throws IOException {
+    if (index != null) {
+      if (numberFound == 0) {
+        index.markClean(file, size, modified);
+      } else {
+        index.forget(file);
+      }
+    }
+  }
+
+  /**
+   * Creates the file to strip {@code file} to. When clobbering it's a hidden file in the same
+   * directory as the file a symlink resolves to, so that it can be renamed over the original.
+   */
+  private File createTempFile(File file) throws IOException {
+    if (clobber) {
+      try {
+        File real = file.toPath().toRealPath().toFile();
+        return createTempFile("." + real.getName() + ".", ".strip", real.getParentFile());
+      } catch (IOException e) {
+        // the directory isn't writable; replace() will copy across filesystems instead
+      }
+    }
+    return createTempFile(file.getName() + ".", ".strip",
+        new File(System.getProperty("java.io.tmpdir")));
+  }
+
+  /**
+   * Creates a new, empty file with a random name. Unlike {@link File#createTempFile}, this
+   * doesn't initialize a {@code SecureRandom}, which would dominate the startup of a short run;
+   * creating the file exclusively is what keeps the name from being hijacked.
+   */
+  static File createTempFile(String prefix, String suffix, File directory) throws IOException {
+    Random random = new Random();
+    while (true) {
+      File result = new File(directory, prefix + (random.nextLong() & Long.MAX_VALUE) + suffix);
+      if (result.createNewFile()) {
+        return result;
+      }
+    }
+  }
+
+  /**
+   * Moves {@code stripped} over {@code target}, keeping the target's permissions. Within a
+   * filesystem this is an atomic rename, so readers see either the original file or the stripped
+   * one. If {@code target} is a symlink, the file it links to is replaced and the link is kept.
+   *
+   * <p>The rename makes a new file: other hard links to the original keep the unstripped content,
+   * and only its POSIX permissions are kept, not its owner, group or ACLs. Where the rename
+   * fails, as across filesystems or in a directory we can't write, the stripped file is copied
+   * over the original instead, which isn't atomic but keeps the file itself.
+   */
+  private void replace(File stripped, File target) throws IOException {
+    Path strippedPath = stripped.toPath();
+    Path targetPath = target.toPath().toRealPath();
+    try {
+      copyPermissions(targetPath, strippedPath);
+      Files.move(strippedPath, targetPath, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      transfer(stripped, targetPath.toFile());
+      Files.delete(strippedPath);
+    }
+    if (fsync == Fsync.ALL) {
+      forceDirectory(targetPath.getParent().toFile());
+    }
+  }
+
+  private static void copyPermissions(Path source, Path target) throws IOException {
+    PosixFileAttributeView view =
+        Files.getFileAttributeView(source, PosixFileAttributeView.class);
+    if (view != null) {
+      Files.setPosixFilePermissions(target, view.readAttributes().permissions());
+    } else {
+      File targetFile = target.toFile();
+      targetFile.setExecutable(source.toFile().canExecute());
+      targetFile.setWritable(source.toFile().canWrite());
+    }
+  }
+
+  /**
+   * Overwrites {@code target} with the contents of {@code source}.
+   */
+  private void transfer(File source, File target) throws IOException {
+    FileChannel in = new FileInputStream(source).getChannel();
+    try {
+      FileChannel out = new FileOutputStream(target).getChannel();
+      try {
+        long size = in.size();
+        for (long position = 0; position < size; ) {
+          long transferred = in.transferTo(position, size - position, out);
+          if (transferred <= 0) {
+            throw new EOFException();
+          }
+          position += transferred;
+        }
+        if (fsync != Fsync.NONE) {
+          out.force(true);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Flushes a directory's entries to disk, so that a rename within it survives a crash. Not all
+   * platforms can open a directory; there this does nothing.
+   */
+  private static void forceDirectory(File directory) throws IOException {
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+    } catch (IOException e) {
+      return;
+    }
+    try {
+      channel.force(true);
+    } catch (IOException e) {
+      // some platforms refuse to sync a directory
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Returns where to search after a match. Like {@link Matcher#find()}, this skips a character
+   * after an empty match.
+   */
+  private static long nextSearch(long start, long end) {
+    return end == start ? end + 1 : end;
+  }
+
+  /**
+   * Writes the input from {@code position} up to a match, followed by the match's replacement.
+   * Returns the position following the match.
+   */
+  private long emit(Output out, long position, Matches matches, int index) throws IOException {
+    out.copy(position, matches.start(index));
+    if (replacement != null) {
+      replacement.write(out, matches, index);
+    }
+    patternMatches.incrementAndGet(matches.pattern(index));
+    return matches.end(index);
+  }
+
+  /**
+   * Returns the number of groups to record for each match, so they can be referenced by the
+   * replacement.
+   */
+  private int recordedGroups() {
+    return replacement != null ? replacement.maxGroup : 0;
+  }
+
+  /**
+   * Finds the matches in {@code file} by splitting it into chunks that are matched concurrently.
+   * Each chunk reports the matches that start within it, reading up to {@code maxMatch} chars past
+   * its end so that matches straddling the boundary are found whole.
+   *
+   * <p>A chunk's matcher starts at the chunk's beginning, but a sequential scan may have consumed
+   * that beginning with a match from the previous chunk. Where that happens the chunk's matches
+   * are checked against a sequential matcher until the two agree.
+   *
+   * <p>Each chunk is matched through a window of the file, so chunks are capped at the window
+   * size less the overlap on either side.
+   */
+  private Matches findInChunks(File file, FileCharSequence fileCharSequence, long deadline)
+      throws IOException {
+    long length = fileCharSequence.longLength();
+    long size = Math.min(chunkSize, windowSize - 2L * maxMatch);
+    List<ChunkTask> chunks = new ArrayList<ChunkTask>();
+    for (long start = 0; start < length; start += size) {
+      long end = Math.min(length, start + size);
+      chunks.add(new ChunkTask(file, start, end, length, deadline));
+    }
+    try {
+      if (ForkJoinTask.inForkJoinPool()) {
+        ForkJoinTask.invokeAll(chunks);
+      } else {
+        for (ChunkTask chunk : chunks) {
+          chunk.invoke();
+        }
+      }
+    } catch (RuntimeException e) {
+      throw rethrow(e);
+    }
+
+    Matches result = new Matches(recordedGroups());
+    FileScanner sequential = new FileScanner(file, fileCharSequence, deadline);
+    long from = 0; // where a sequential scan would search next
+    for (ChunkTask chunk : chunks) {
+      Matches matches = await(chunk);
+      fileCharSequence.charAtCount += chunk.charAtCount;
+      int m = 0;
+      while (true) {
+        // whether the chunk searched everything a sequential scan would; they agree from here on
+        boolean agree = m == 0 || nextSearch(matches.start(m - 1), matches.end(m - 1)) <= from;
+        if (m == matches.size() && agree) {
+          break;
+        }
+        if (m < matches.size() && matches.start(m) >= from && agree) {
+          result.addAll(matches, m);
+          int last = result.size() - 1;
+          from = nextSearch(result.start(last), result.end(last));
+          break;
+        }
+
+        // a previous match overlaps this chunk's matches; rescan from where that match ended
+        if (!sequential.find(from, chunk.startLimit)) {
+          break;
+        }
+        sequential.record(result);
+        from = sequential.nextSearch();
+        while (m < matches.size() && matches.start(m) < from) {
+          m++;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the result of {@code future}, throwing its I/O failure if it had one. If this thread
+   * is interrupted while waiting, it stays interrupted.
+   */
+  static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      throw rethrow(e.getCause());
+    }
+  }
+
+  /**
+   * Throws the I/O failure that caused {@code t}, if any. Otherwise returns {@code t} as an
+   * unchecked exception for the caller to throw.
+   */
+  private static RuntimeException rethrow(Throwable t) throws IOException {
+    for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+    }
+    return t instanceof RuntimeException ? (RuntimeException) t : new RuntimeException(t);
+  }
+
+  /**
+   * Logs a file's result and adds it to the totals.
+   */
+  private void report(Result result) throws IOException {
+    if (result == Result.SKIPPED) {
+      skippedFiles++;
+      return;
+    }
+    if (result.message != null) {
+      log.println(printStats ? result.message + " " + Stats.describe(result) : result.message);
+    }
+    if (result.listing != null) {
+      listing.write(result.listing);
+    }
+    if (stats != null) {
+      stats.add(result);
+    }
+    if (result.timedOut) {
+      timedOutFiles++;
+    }
+    totalFiles++;
+    totalMatches += result.matches;
+    totalBytes += result.bytes;
+  }
+
+  /**
+   * Finds the matches that start within a chunk of a file. Each chunk uses its own file handle so
+   * chunks can be matched on different threads.
+   */
+  class ChunkTask extends RecursiveTask<Matches> {
+    private static final long serialVersionUID = 0;
+
+    final File file;
+    final long start;
+    final long end;
+    final long regionEnd;
+    /** Matches must start before this; the last chunk also takes an empty match at its end. */
+    final long startLimit;
+    final long deadline;
+    long charAtCount;
+
+    ChunkTask(File file, long start, long end, long length, long deadline) {
+      this.file = file;
+      this.deadline = deadline;
+      this.start = start;
+      this.end = end;
+      this.regionEnd = Math.min(length, end + maxMatch);
+      this.startLimit = end == length ? end + 1 : end;
+    }
+
+    @Override protected Matches compute() {
+      Matches result = new Matches(recordedGroups());
+      try {
+        FileCharSequence fileCharSequence = new FileCharSequence(file);
+        try {
+          long length = fileCharSequence.longLength();
+          // the window reaches back so that lookbehinds at the chunk's start see what precedes it
+          Scanner scanner = new Scanner(
+              fileCharSequence.window(Math.max(0, start - maxMatch), regionEnd), deadline);
+          for (long from = start; from < startLimit && scanner.find(from, regionEnd); ) {
+            if (scanner.start >= startLimit) {
+              break;
+            }
+            if (scanner.hitEnd() && regionEnd < length) {
+              throw new IOException("Match at " + scanner.start + " in " + file
+                  + " may be longer than --max-match " + maxMatch);
+            }
+            scanner.record(result, 0);
+            from = scanner.nextSearch();
+          }
+        } finally {
+          charAtCount = fileCharSequence.charAtCount;
+          fileCharSequence.close();
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Produces the files to strip on a separate thread, so that directories are walked while the
+   * files already found are being stripped. Directories are walked recursively without following
+   * links; the files found in them are filtered by the include and exclude globs, and binary
+   * files are skipped. Files named on the command line are always stripped.
+   */
+  class Walker extends Thread {
+    static final int QUEUE_SIZE = 1024;
+
+    private final BlockingQueue<File> queue = new ArrayBlockingQueue<File>(QUEUE_SIZE);
+    private final File end = new File("");
+    private final Set<String> seen = new HashSet<String>();
+    private volatile RuntimeException failure;
+
+    Walker() {
+      super("Strip walker");
+      setDaemon(true);
+    }
+
+    /**
+     * Returns the next file to strip, or null once there are no more.
+     */
+    File next() throws InterruptedIOException {
+      File result;
+      try {
+        result = queue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+      if (result != end) {
+        return result;
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return null;
+    }
+
+    @Override public void run() {
+      try {
+        try {
+          for (File file : files) {
+            if (file.isDirectory()) {
+              walk(file.toPath());
+            } else {
+              offer(file);
+            }
+          }
+        } catch (RuntimeException e) {
+          failure = e;
+        }
+        queue.put(end);
+      } catch (InterruptedException e) {
+        // the strip failed; nobody is waiting for more files
+      }
+    }
+
+    private void walk(final Path root) throws InterruptedException {
+      try {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+          @Override public FileVisitResult preVisitDirectory(Path directory,
+              BasicFileAttributes attributes) {
+            return directory.equals(root) || !excluded(root, directory, true)
+                ? FileVisitResult.CONTINUE
+                : FileVisitResult.SKIP_SUBTREE;
+          }
+
+          @Override public FileVisitResult visitFile(Path path, BasicFileAttributes attributes)
+              throws IOException {
+            if (!attributes.isRegularFile() || excluded(root, path, false)) {
+              return FileVisitResult.CONTINUE;
+            }
+            File file = path.toFile();
+            boolean unchanged = index != null && index.isUnchanged(
+                file, attributes.size(), attributes.lastModifiedTime().toMillis());
+            if (!unchanged && isBinary(path)) {
+              binaryFiles.incrementAndGet();
+              return FileVisitResult.CONTINUE;
+            }
+            try {
+              offer(file);
+            } catch (InterruptedException e) {
+              throw new InterruptedIOException();
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override public FileVisitResult visitFileFailed(Path path, IOException e) {
+            System.err.println("Skipped " + path + ": " + e);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+      } catch (InterruptedIOException e) {
+        throw new InterruptedException();
+      } catch (IOException e) {
+        System.err.println("Skipped " + root + ": " + e);
+      }
+    }
+
+    private void offer(File file) throws InterruptedException {
+      if (seen.add(file.getAbsolutePath())) {
+        queue.put(file);
+      }
+    }
+  }
+
+  /**
+   * Strips files as they're created or modified in a set of directories, until the process is
+   * killed. Bursts of events for a file are debounced: a file is stripped once it has had no
+   * events for the debounce period and its size and modification time have stopped changing, so
+   * files that are still being written are left alone. Files are stripped on a pool of {@code
+   * jobs} threads with a bounded number in flight; a file that changes while it's being stripped
+   * is stripped again afterwards.
+   *
+   * <p>When clobbering, Strip's own rewrite of a file raises events too. The size and
+   * modification time each rewrite leaves behind are remembered, so those events are ignored.
+   */
+  class Watcher {
+    private final WatchService service;
+    private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+    private final Map<Path, Path> roots = new HashMap<Path, Path>();
+    private final Map<Path, Pending> pending = new LinkedHashMap<Path, Pending>();
+    private final Set<Path> inFlight = Collections.newSetFromMap(
+        new ConcurrentHashMap<Path, Boolean>());
+    private final Map<Path, List<Long>> rewritten = new ConcurrentHashMap<Path, List<Long>>();
+    private final ForkJoinPool pool = new ForkJoinPool(jobs);
+    private final Semaphore permits = new Semaphore(jobs * 2);
+    private final AtomicInteger completed = new AtomicInteger();
+
+    Watcher() throws IOException {
+      service = FileSystems.getDefault().newWatchService();
+      for (File file : files) {
+        Path root = file.toPath();
+        register(root, root, false);
+      }
+    }
+
+    void run() throws IOException, InterruptedException {
+      long pollMillis = Math.max(10, debounceMillis / 4);
+      int saved = 0;
+      while (true) {
+        WatchKey key = service.poll(pollMillis, TimeUnit.MILLISECONDS);
+        for (; key != null; key = service.poll()) {
+          process(key);
+        }
+        submitSettled();
+        if (index != null && completed.get() != saved) {
+          saved = completed.get();
+          index.save();
+        }
+      }
+    }
+
+    /**
+     * Watches {@code directory} and the directories under it. If {@code created}, the files in
+     * them are new too.
+     */
+    private void register(final Path root, Path directory, final boolean created)
+        throws IOException {
+      Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+        @Override public FileVisitResult preVisitDirectory(Path directory,
+            BasicFileAttributes attributes) throws IOException {
+          if (!directory.equals(root) && excluded(root, directory, true)) {
+            return FileVisitResult.SKIP_SUBTREE;
+          }
+          WatchKey key = directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+              StandardWatchEventKinds.ENTRY_MODIFY);
+          directories.put(key, directory);
+          roots.put(directory, root);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+          if (created && attributes.isRegularFile() && !excluded(root, path, false)) {
+            changed(path, root);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override public FileVisitResult visitFileFailed(Path path, IOException e) {
+          System.err.println("Skipped " + path + ": " + e);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    }
+
+    private void process(WatchKey key) throws IOException {
+      Path directory = directories.get(key);
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          // events were lost; everything may have changed
+          for (File file : files) {
+            Path root = file.toPath();
+            register(root, root, true);
+          }
+          continue;
+        }
+        if (directory == null) {
+          continue;
+        }
+        Path root = roots.get(directory);
+        Path path = directory.resolve((Path) event.context());
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+          if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+              && !excluded(root, path, true)) {
+            register(root, path, true);
+          }
+        } else if (!excluded(root, path, false)) {
+          changed(path, root);
+        }
+      }
+      if (!key.reset()) {
+        directories.remove(key);
+        roots.remove(directory);
+      }
+    }
+
+    /**
+     * Restarts the debounce period of {@code path}.
+     */
+    private void changed(Path path, Path root) {
+      Pending p = pending.get(path);
+      if (p == null) {
+        p = new Pending(root);
+        pending.put(path, p);
+      }
+      p.lastEventNanos = System.nanoTime();
+      p.size = -1;
+    }
+
+    /**
+     * Submits the files that have settled: they've had no events for the debounce period, and
+     * their size and modification time haven't changed since they were last checked.
+     */
+    private void submitSettled() {
+      long now = System.nanoTime();
+      for (Iterator<Map.Entry<Path, Pending>> i = pending.entrySet().iterator(); i.hasNext(); ) {
+        Map.Entry<Path, Pending> entry = i.next();
+        Path path = entry.getKey();
+        Pending p = entry.getValue();
+        if (now - p.lastEventNanos < debounceMillis * 1000000L || inFlight.contains(path)) {
+          continue;
+        }
+
+        BasicFileAttributes attributes;
+        try {
+          attributes = Files.readAttributes(
+              path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+          i.remove(); // deleted
+          continue;
+        }
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        if (!attributes.isRegularFile() || isRewrite(path, size, modified)) {
+          i.remove();
+          continue;
+        }
+        if (size != p.size || modified != p.modified) {
+          // still being written; check again after another debounce period
+          p.size = size;
+          p.modified = modified;
+          p.lastEventNanos = now;
+          continue;
+        }
+        if (!permits.tryAcquire()) {
+          return;
+        }
+        i.remove();
+        submit(path);
+      }
+    }
+
+    private void submit(final Path path) {
+      inFlight.add(path);
+      pool.submit(new Runnable() {
+        public void run() {
+          try {
+            if (isBinary(path)) {
+              binaryFiles.incrementAndGet();
+              return;
+            }
+            Result result = stripFile(path.toFile());
+            if (clobber && result.matches > 0 && !result.timedOut) {
+              BasicFileAttributes attributes = Files.readAttributes(
+                  path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+              rewritten.put(path, Arrays.asList(
+                  attributes.size(), attributes.lastModifiedTime().toMillis()));
+            }
+            synchronized (Strip.this) {
+              report(result);
+            }
+          } catch (IOException e) {
+            System.err.println("Failed to strip " + path + ": " + e);
+          } catch (RuntimeException e) {
+            System.err.println("Failed to strip " + path + ": " + e);
+          } finally {
+            completed.incrementAndGet();
+            inFlight.remove(path);
+            permits.release();
+          }
+        }
+      });
+    }
+
+    /**
+     * Returns true if {@code path} is as Strip last left it.
+     */
+    private boolean isRewrite(Path path, long size, long modified) {
+      List<Long> rewrite = rewritten.remove(path);
+      return rewrite != null && rewrite.get(0) == size && rewrite.get(1) == modified;
+    }
+  }
+
+  /**
+   * A file with recent events, waiting to settle.
+   */
+  static class Pending {
+    final Path root;
+    long lastEventNanos;
+    /** The size when the file was last checked, or -1 if it hasn't been since its last event. */
+    long size = -1;
+    long modified;
+
+    Pending(Path root) {
+      this.root = root;
+    }
+  }
+
+  /**
+   * Returns true if a file or directory found under {@code root} should be skipped.
+   * Without include globs every file is included; version control metadata and the files Strip
+   * writes itself are always excluded.
+   */
+  private boolean excluded(Path root, Path path, boolean directory) {
+    String name = path.getFileName().toString();
+    if (directory && VCS_DIRECTORIES.contains(name)) {
+      return true;
+    }
+    if (!directory && (name.endsWith(".strip")
+        || index != null && name.startsWith("." + index.file.getName() + ".")
+        || index != null && path.toFile().getAbsoluteFile().equals(
+            index.file.getAbsoluteFile()))) {
+      return true;
+    }
+    Path relative = root.relativize(path);
+    for (Glob exclude : excludes) {
+      if (exclude.matches(relative)) {
+        return true;
+      }
+    }
+    if (directory || includes.isEmpty()) {
+      return false;
+    }
+    for (Glob include : includes) {
+      if (include.matches(relative)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if {@code path} looks binary: its first block contains a NUL byte, which text in
+   * single-byte encodings and UTF-8 never does.
+   */
+  static boolean isBinary(Path path) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(SNIFF_SIZE);
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) == -1) {
+          break;
+        }
+      }
+    } finally {
+      channel.close();
+    }
+    for (int i = 0; i < buffer.position(); i++) {
+      if (buffer.get(i) == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A glob for the {@code --include} and {@code --exclude} flags. Globs with a slash match paths
+   * relative to the directory being walked; others match file names, wherever they are.
+   */
+  static class Glob {
+    final PathMatcher matcher;
+    final boolean matchesPath;
+
+    Glob(String glob) {
+      this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+      this.matchesPath = glob.indexOf('/') != -1;
+    }
+
+    boolean matches(Path relative) {
+      return matcher.matches(matchesPath ? relative : relative.getFileName());
+    }
+  }
+
+  /**
+   * When to force stripped files to disk while clobbering. {@code FILE} syncs each stripped file
+   * before it replaces the original, so a crash can't leave a truncated file in its place; {@code
+   * ALL} also syncs the directory after the rename, so the replacement itself is durable.
+   */
+  enum Fsync {
+    NONE, FILE, ALL
+  }
+
+  /**
+   * Finds successive matches of all patterns in one input. The literal patterns and the others
+   * are searched separately, and the leftmost of the two matches wins; among matches that start
+   * at the same position, the pattern listed first wins, just as it would in an alternation.
+   * Each side's match is kept until the search passes it, so neither side searches the same input
+   * twice. Each thread must use its own instance.
+   */
+  class Scanner {
+    private static final long UNKNOWN = -2;
+    private static final long NONE = -1;
+
+    final Matcher matcher;
+    final Searcher searcher;
+    final LiteralSearcher literals;
+    /** The position in the input of the matcher's first char. */
+    final long offset;
+
+    /** The current match. */
+    long start;
+    long end;
+    int pattern;
+    private boolean regexWon;
+
+    private long regionEnd = -1;
+    private long regexStart = UNKNOWN;
+    private int regexPattern;
+    private long literalStart = UNKNOWN;
+
+    /**
+     * Scans {@code input}, which may be a window of a file. Positions are file positions either
+     * way, though the matcher only sees the window.
+     */
+    Scanner(FileCharSequence input, long deadline) {
+      this.offset = input.start;
+      this.matcher = matcher(deadline != Long.MAX_VALUE
+          ? new DeadlineCharSequence(input, input.start, deadline)
+          : input);
+      this.searcher = prefilter != null ? new Searcher(prefilter, input.channel()) : null;
+      this.literals = patterns.literals != null
+          ? new LiteralSearcher(patterns.literals, input.channel(), null)
+          : null;
+    }
+
+    Scanner(StreamWindow window) {
+      this.offset = 0;
+      this.matcher = matcher(window);
+      this.searcher = null;
+      this.literals = patterns.literals != null
+          ? new LiteralSearcher(patterns.literals, null, window)
+          : null;
+    }
+
+    private Matcher matcher(CharSequence input) {
+      if (patterns.regex == null) {
+        return null;
+      }
+      Matcher result = patterns.regex.matcher(input);
+      result.useTransparentBounds(true);
+      result.useAnchoringBounds(false);
+      return result;
+    }
+
+    /**
+     * Forgets the pending matches, after the input has changed.
+     */
+    void reset() {
+      regexStart = UNKNOWN;
+      literalStart = UNKNOWN;
+      if (literals != null) {
+        literals.reset();
+      }
+    }
+
+    /**
+     * Finds the first match that starts at or after {@code from}, within a region ending at
+     * {@code regionEnd}.
+     */
+    boolean find(long from, long regionEnd) throws IOException {
+      if (regionEnd != this.regionEnd) {
+        reset();
+        this.regionEnd = regionEnd;
+      }
+      if (matcher != null && (regexStart == UNKNOWN || regexStart != NONE && regexStart < from)) {
+        regexStart = findRegex(from, regionEnd) ? offset + matcher.start() : NONE;
+        regexPattern = regexStart != NONE ? patterns.patternOf(matcher) : -1;
+      }
+      if (literals != null
+          && (literalStart == UNKNOWN || literalStart != NONE && literalStart < from)) {
+        literalStart = literals.find(from, regionEnd) ? literals.start : NONE;
+      }
+
+      if (regexStart == NONE || regexStart == UNKNOWN) {
+        regexWon = false;
+      } else if (literalStart == NONE || literalStart == UNKNOWN) {
+        regexWon = true;
+      } else {
+        regexWon = regexStart < literalStart
+            || regexStart == literalStart && regexPattern < literals.pattern;
+      }
+      if (regexWon) {
+        start = offset + matcher.start();
+        end = offset + matcher.end();
+        pattern = regexPattern;
+        return true;
+      } else if (literalStart >= 0) {
+        start = literals.start;
+        end = literals.end;
+        pattern = literals.pattern;
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Finds the first regex match at or after {@code from}. If the pattern has a required
+     * literal, the file is searched for the literal first so the matcher only runs where a match
+     * is possible.
+     */
+    private boolean findRegex(long from, long regionEnd) throws IOException {
+      int end = (int) (regionEnd - offset);
+      if (searcher != null) {
+        int literalOffset = prefilter.offset;
+        long literalAt = searcher.indexOf(from + Math.max(literalOffset, 0), regionEnd);
+        if (literalAt == -1) {
+          return false;
+        }
+        if (literalOffset != -1) {
+          // every match has the literal at the same offset, so candidates can be tried directly
+          do {
+            matcher.region((int) (literalAt - literalOffset - offset), end);
+            if (matcher.lookingAt()) {
+              return true;
+            }
+            literalAt = searcher.indexOf(literalAt + 1, regionEnd);
+          } while (literalAt != -1);
+          return false;
+        }
+      }
+      matcher.region((int) (from - offset), end);
+      return matcher.find();
+    }
+
+    /**
+     * Returns true if the current match hit the end of the region, so a longer region could
+     * change it.
+     */
+    boolean hitEnd() {
+      return regexWon && matcher.hitEnd();
+    }
+
+    /**
+     * Returns true if more input after {@code length} could change the current match, or reveal
+     * an earlier one. Matches that would have to be longer than {@code maxMatch} are ignored.
+     */
+    boolean mayChange(int length) {
+      if (literals != null && start > length - literals.automaton.maxLength) {
+        return true; // a literal that starts earlier may end past the input
+      }
+      if (matcher == null) {
+        return false;
+      } else if (regexWon) {
+        return matcher.hitEnd() || matcher.requireEnd();
+      } else {
+        return matcher.hitEnd() && start + maxMatch > length;
+      }
+    }
+
+    /**
+     * Returns the earliest position at which more input after {@code length} could reveal a
+     * match, after a search that found none.
+     */
+    long safeEnd(int length) {
+      long result = matcher != null && matcher.hitEnd() ? length - maxMatch : length;
+      if (literals != null) {
+        result = Math.min(result, length - literals.automaton.maxLength + 1);
+      }
+      return result;
+    }
+
+    /**
+     * Adds the current match to {@code matches}. Its offsets are relative to {@code base}.
+     */
+    void record(Matches matches, long base) {
+      if (regexWon) {
+        matches.add(matcher, base + offset, pattern);
+      } else {
+        matches.add(base + start, base + end, pattern);
+      }
+    }
+
+    long nextSearch() {
+      return Strip.nextSearch(start, end);
+    }
+  }
+
+  /**
+   * Finds the matches in a file in order. A {@link Matcher} can only index {@code int} chars, so
+   * the file is scanned through windows of at most {@code windowSize} bytes, each reaching {@code
+   * maxMatch} bytes back for lookbehinds. A match is only taken from a window if it starts at
+   * least {@code maxMatch} bytes before the window's end, so that it's whole; the next window
+   * starts where that margin begins. Positions are file positions throughout.
+   */
+  class FileScanner {
+    final File file;
+    final FileCharSequence fileCharSequence;
+    final long deadline;
+    final long length;
+
+    private Scanner scanner;
+    private long windowStart;
+    private long windowEnd;
+    /** Matches that start before this are whole within the window. */
+    private long safeLimit = -1;
+
+    FileScanner(File file, FileCharSequence fileCharSequence, long deadline) {
+      this.file = file;
+      this.fileCharSequence = fileCharSequence;
+      this.deadline = deadline;
+      this.length = fileCharSequence.longLength();
+    }
+
+    /**
+     * Finds the first match that starts in {@code [from, startLimit)}. The end of the file may
+     * hold an empty match, so {@code startLimit} may be as much as the length plus one.
+     */
+    boolean find(long from, long startLimit) throws IOException {
+      while (from < startLimit && from <= length) {
+        if (from >= safeLimit || from < windowStart) {
+          slide(from);
+        }
+        if (scanner.find(from, windowEnd) && scanner.start < safeLimit) {
+          if (scanner.start >= startLimit) {
+            return false;
+          }
+          if (scanner.hitEnd() && windowEnd < length) {
+            throw new IOException("Match at " + scanner.start + " in " + file
+                + " may be longer than --max-match " + maxMatch);
+          }
+          return true;
+        }
+        if (windowEnd == length) {
+          return false;
+        }
+        from = Math.max(from, safeLimit);
+      }
+      return false;
+    }
+
+    private void slide(long from) {
+      windowStart = Math.max(0, from - maxMatch);
+      windowEnd = Math.min(length, windowStart + windowSize);
+      safeLimit = windowEnd == length ? length + 1 : windowEnd - maxMatch;
+      scanner = new Scanner(fileCharSequence.window(windowStart, windowEnd), deadline);
+    }
+
+    void record(Matches matches) {
+      scanner.record(matches, 0);
+    }
+
+    long nextSearch() {
+      return scanner.nextSearch();
+    }
+  }
+
+  /**
+   * The start and end offsets of a list of matches, and of their first {@code groups} groups.
+   * Offsets of groups that didn't participate in a match are -1. Each match also records the
+   * index of the pattern that found it.
+   */
+  static class Matches {
+    private final int stride;
+    private long[] offsets;
+    private int[] patterns;
+    private int size;
+
+    Matches(int groups) {
+      this.stride = (groups + 1) * 2;
+      this.offsets = new long[stride * 16];
+      this.patterns = new int[16];
+    }
+
+    /**
+     * Adds the current match of {@code matcher}, whose input starts at {@code base}.
+     */
+    void add(Matcher matcher, long base, int pattern) {
+      ensureCapacity(size + 1);
+      int offset = size * stride;
+      for (int group = 0; group < stride / 2; group++) {
+        int start = matcher.start(group);
+        offsets[offset + group * 2] = start != -1 ? base + start : -1;
+        offsets[offset + group * 2 + 1] = start != -1 ? base + matcher.end(group) : -1;
+      }
+      patterns[size] = pattern;
+      size++;
+    }
+
+    /**
+     * Adds a match without groups.
+     */
+    void add(long start, long end, int pattern) {
+      ensureCapacity(size + 1);
+      int offset = size * stride;
+      Arrays.fill(offsets, offset, offset + stride, -1);
+      offsets[offset] = start;
+      offsets[offset + 1] = end;
+      patterns[size] = pattern;
+      size++;
+    }
+
+    /**
+     * Adds the matches of {@code other} from {@code index} on.
+     */
+    void addAll(Matches other, int index) {
+      int count = other.size - index;
+      ensureCapacity(size + count);
+      System.arraycopy(other.offsets, index * stride, offsets, size * stride, count * stride);
+      System.arraycopy(other.patterns, index, patterns, size, count);
+      size += count;
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity * stride > offsets.length) {
+        offsets = Arrays.copyOf(offsets, Math.max(capacity * stride, offsets.length * 2));
+        patterns = Arrays.copyOf(patterns, offsets.length / stride);
+      }
+    }
+
+    void clear() {
+      size = 0;
+    }
+
+    int size() {
+      return size;
+    }
+
+    long start(int index) {
+      return offsets[index * stride];
+    }
+
+    long end(int index) {
+      return offsets[index * stride + 1];
+    }
+
+    long start(int index, int group) {
+      return offsets[index * stride + group * 2];
+    }
+
+    long end(int index, int group) {
+      return offsets[index * stride + group * 2 + 1];
+    }
+
+    int pattern(int index) {
+      return patterns[index];
+    }
+  }
+
+  /**
+   * A replacement template, parsed once so that writing a replacement doesn't allocate. As with
+   * {@link Matcher#appendReplacement}, {@code $n} and {@code ${name}} refer to groups and a
+   * backslash escapes the character that follows it.
+   */
+  static class Replacement {
+    /** For each part of the template, the group it refers to, or -1 for literal text. */
+    final int[] groups;
+    final byte[][] literals;
+    final int maxGroup;
+
+    Replacement(int[] groups, byte[][] literals) {
+      this.groups = groups;
+      this.literals = literals;
+      int maxGroup = 0;
+      for (int group : groups) {
+        maxGroup = Math.max(maxGroup, group);
+      }
+      this.maxGroup = maxGroup;
+    }
+
+    static Replacement parse(String template, Pattern pattern) {
+      int groupCount = pattern.matcher("").groupCount();
+      List<Integer> groups = new ArrayList<Integer>();
+      List<byte[]> literals = new ArrayList<byte[]>();
+      StringBuilder literal = new StringBuilder();
+
+      for (int i = 0; i < template.length(); ) {
+        char c = template.charAt(i++);
+        if (c == '\\') {
+          if (i == template.length()) {
+            throw new IllegalArgumentException("character to be escaped is missing");
+          }
+          literal.append(template.charAt(i++));
+          continue;
+        } else if (c != '$') {
+          literal.append(c);
+          continue;
+        }
+
+        int group;
+        if (i == template.length()) {
+          throw new IllegalArgumentException("Illegal group reference: group index is missing");
+        } else if (template.charAt(i) == '{') {
+          int close = template.indexOf('}', i);
+          if (close == -1) {
+            throw new IllegalArgumentException("named capturing group is missing trailing '}'");
+          }
+          String name = template.substring(i + 1, close);
+          Integer named = PatternSyntax.groupNames(pattern).get(name);
+          if (named == null) {
+            throw new IllegalArgumentException("No group with name {" + name + "}");
+          }
+          group = named;
+          i = close + 1;
+        } else {
+          group = template.charAt(i) - '0';
+          if (group < 0 || group > 9) {
+            throw new IllegalArgumentException("Illegal group reference");
+          }
+          // like appendReplacement, take more digits only while they name an existing group
+          for (i++; i < template.length(); i++) {
+            int digit = template.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || group * 10 + digit > groupCount) {
+              break;
+            }
+            group = group * 10 + digit;
+          }
+        }
+        if (group > groupCount) {
+          throw new IllegalArgumentException("No group " + group);
+        }
+
+        if (literal.length() > 0) {
+          groups.add(-1);
+          literals.add(encode(literal.toString()));
+          literal.setLength(0);
+        }
+        groups.add(group);
+        literals.add(null);
+      }
+
+      if (literal.length() > 0) {
+        groups.add(-1);
+        literals.add(encode(literal.toString()));
+      }
+
+      int[] groupsArray = new int[groups.size()];
+      for (int i = 0; i < groupsArray.length; i++) {
+        groupsArray[i] = groups.get(i);
+      }
+      return new Replacement(groupsArray, literals.toArray(new byte[literals.size()][]));
+    }
+
+    void write(Output out, Matches matches, int index) throws IOException {
+      for (int i = 0; i < groups.length; i++) {
+        int group = groups[i];
+        if (group == -1) {
+          out.write(literals[i]);
+        } else if (matches.start(index, group) != -1) {
+          out.copy(matches.start(index, group), matches.end(index, group));
+        }
+      }
+    }
+
+    private static byte[] encode(String literal) {
+      for (int i = 0; i < literal.length(); i++) {
+        if (literal.charAt(i) > 0xff) {
+          throw new IllegalArgumentException("Replacement must be ISO-8859-1: " + literal);
+        }
+      }
+      try {
+        return literal.getBytes("ISO-8859-1");
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /**
+   * Finds the capturing groups and numbered backreferences of a regular expression, which {@link
+   * Pattern} doesn't expose. Like Pattern, this skips escapes, {@code \Q..\E} quotes, character
+   * classes and, in {@link Pattern#COMMENTS} mode, whitespace and {@code #} comments.
+   */
+  static class PatternSyntax {
+    /**
+     * Returns the numbers of the named groups in {@code pattern}.
+     *
+     * @throws IllegalArgumentException if the groups found aren't the ones Pattern finds.
+     */
+    static Map<String, Integer> groupNames(Pattern pattern) {
+      Map<String, Integer> result = new HashMap<String, Integer>();
+      if ((pattern.flags() & Pattern.LITERAL) == 0) {
+        scan(pattern.pattern(), pattern.flags(), 0, result);
+      }
+      return result;
+    }
+
+    /**
+     * Returns {@code regex} with its numbered backreferences shifted by {@code offset}, the
+     * number of groups that precede it in an alternation. Named backreferences are unaffected.
+     * A quote or comment that runs to the end of {@code regex} is closed, so that more pattern
+     * can follow it.
+     *
+     * @throws IllegalArgumentException if the groups found aren't the ones Pattern finds.
+     */
+    static String renumberBackreferences(String regex, int offset) {
+      return scan(regex, 0, offset, new HashMap<String, Integer>());
+    }
+
+    /**
+     * Returns {@code regex} with its numbered backreferences shifted by {@code offset}, and puts
+     * the number of each named group in {@code groupNames}.
+     */
+    private static String scan(String regex, int flags, int offset,
+        Map<String, Integer> groupNames) {
+      int groupCount = Pattern.compile(regex, flags).matcher("").groupCount();
+      StringBuilder result = new StringBuilder();
+      int group = 0;
+      int classDepth = 0;
+      // whether whitespace and comments are ignored, in each enclosing group
+      boolean[] comments = new boolean[regex.length() + 1];
+      int depth = 0;
+      comments[0] = (flags & Pattern.COMMENTS) != 0;
+      for (int i = 0; i < regex.length(); i++) {
+        char c = regex.charAt(i);
+        if (c == '\\' && i + 1 < regex.length()) {
+          char e = regex.charAt(i + 1);
+          if (e == 'Q') {
+            int end = regex.indexOf("\\E", i + 2);
+            if (end == -1) {
+              result.append(regex, i, regex.length()).append("\\E");
+              break;
+            }
+            result.append(regex, i, end + 2);
+            i = end + 1;
+          } else if (classDepth == 0 && e >= '1' && e <= '9') {
+            // like Pattern, take more digits only while they name a group opened before this
+            int reference = e - '0';
+            for (i += 2; i < regex.length(); i++) {
+              int digit = regex.charAt(i) - '0';
+              if (digit < 0 || digit > 9 || reference * 10 + digit > group) {
+                break;
+              }
+              reference = reference * 10 + digit;
+            }
+            i--;
+            // the group keeps following digits from being read as part of the reference
+            result.append("(?:\\").append(reference + offset).append(')');
+          } else {
+            result.append(c).append(e);
+            i++;
+          }
+        } else if (c == '#' && comments[depth]) {
+          int end = endOfComment(regex, i);
+          result.append(regex, i, end);
+          if (end == regex.length()) {
+            result.append('\n');
+          }
+          i = end - 1;
+        } else if (c == '[') {
+          classDepth++;
+          result.append(c);
+          // as in Pattern, a ']' first in a class, or first after its '^', is a literal
+          if (regex.startsWith("^", i + 1)) {
+            result.append(regex.charAt(++i));
+          }
+          if (regex.startsWith("]", i + 1)) {
+            result.append(regex.charAt(++i));
+          }
+        } else if (c == '(' && classDepth == 0) {
+          boolean groupComments = comments[depth];
+          int next = groupComments ? skipWhitespace(regex, i + 1) : i + 1;
+          if (!regex.startsWith("?", next)) {
+            group++;
+          } else if (regex.startsWith("?<", next)
+              && !regex.startsWith("?<=", next) && !regex.startsWith("?<!", next)) {
+            group++;
+            groupNames.put(regex.substring(next + 2, regex.indexOf('>', next)), group);
+          } else {
+            // flags apply to the rest of the enclosing group, or after a ':' to their own group
+            int end = next + 1;
+            boolean on = true;
+            for (; end < regex.length() && "idmsuxU-".indexOf(regex.charAt(end)) != -1; end++) {
+              if (regex.charAt(end) == '-') {
+                on = false;
+              } else if (regex.charAt(end) == 'x') {
+                groupComments = on;
+              }
+            }
+            if (end < regex.length() && regex.charAt(end) == ')') {
+              comments[depth] = groupComments;
+              result.append(regex, i, end + 1);
+              i = end;
+              continue;
+            }
+          }
+          comments[++depth] = groupComments;
+          result.append(c);
+        } else {
+          if (c == ']' && classDepth > 0) {
+            classDepth--;
+          } else if (c == ')' && classDepth == 0 && depth > 0) {
+            depth--;
+          }
+          result.append(c);
+        }
+      }
+      if (group != groupCount) {
+        throw new IllegalArgumentException("Can't find the groups of " + regex);
+      }
+      return result.toString();
+    }
+
+    /**
+     * Returns the index of the line terminator that ends the comment at {@code start}, or the
+     * length of {@code regex} if there is none.
+     */
+    private static int endOfComment(String regex, int start) {
+      int i = start;
+      while (i < regex.length() && "\n\r\u0085\u2028\u2029".indexOf(regex.charAt(i)) == -1) {
+        i++;
+      }
+      return i;
+    }
+
+    /**
+     * Returns the index of the first character at or after {@code start} that isn't whitespace
+     * or in a comment.
+     */
+    private static int skipWhitespace(String regex, int start) {
+      int i = start;
+      while (i < regex.length()) {
+        char c = regex.charAt(i);
+        if (c == '#') {
+          i = endOfComment(regex, i);
+        } else if (" \t\n\u000B\f\r".indexOf(c) != -1) {
+          i++;
+        } else {
+          break;
+        }
+      }
+      return i;
+    }
+  }
+
+  /**
+   * A literal string that every match of a pattern contains. Searching for the literal is much
+   * cheaper than running the matcher at every position, so regions without it can be skipped.
+   */
+  static class Prefilter {
+    /** Longer literals are truncated; a prefix of a required literal is also required. */
+    static final int MAX_LITERAL = 1024;
+
+    final byte[] literal;
+    /** The literal's offset from the start of every match, or -1 if that varies. */
+    final int offset;
+    /** The Boyer-Moore-Horspool shift for each byte value. */
+    final int[] skip = new int[256];
+
+    Prefilter(String literal, int offset) {
+      this.literal = new byte[Math.min(literal.length(), MAX_LITERAL)];
+      for (int i = 0; i < this.literal.length; i++) {
+        this.literal[i] = (byte) literal.charAt(i);
+      }
+      this.offset = offset;
+      Arrays.fill(skip, this.literal.length);
+      for (int i = 0; i < this.literal.length - 1; i++) {
+        skip[this.literal[i] & 0xff] = this.literal.length - 1 - i;
+      }
+    }
+
+    /**
+     * Returns a prefilter for the longest literal that every match of {@code pattern} must
+     * contain, favoring literals at a fixed offset. Returns null if the pattern is too complex
+     * to analyze or has no required literal. The analysis is conservative: only the top level of
+     * the pattern is examined, and any alternation or inline flag disables it.
+     */
+    static Prefilter of(Pattern pattern) {
+      int flags = pattern.flags();
+      if ((flags & (Pattern.CASE_INSENSITIVE | Pattern.COMMENTS | Pattern.CANON_EQ)) != 0) {
+        return null;
+      }
+      String regex = pattern.pattern();
+      if ((flags & Pattern.LITERAL) != 0) {
+        return regex.length() > 0 && isLatin1(regex) ? new Prefilter(regex, 0) : null;
+      }
+
+      String best = null;
+      int bestOffset = -1;
+      StringBuilder run = new StringBuilder();
+      int runOffset = 0;
+      int width = 0; // the fixed width of the pattern so far, or -1 if it varies
+
+      for (int i = 0; i <= regex.length(); ) {
+        int literal = -1;
+        int atomWidth = -1; // 0 or 1 for fixed-width atoms
+        int atomEnd;
+
+        if (i == regex.length()) {
+          atomEnd = i + 1; // a sentinel that ends the final run
+        } else {
+          char c = regex.charAt(i);
+          atomEnd = i + 1;
+          if (c == '\\') {
+            if (i + 1 == regex.length()) {
+              return null;
+            }
+            char e = regex.charAt(i + 1);
+            atomEnd = i + 2;
+            if (e == 'Q') {
+              int quoteEnd = regex.indexOf("\\E", i + 2);
+              String quoted = regex.substring(i + 2, quoteEnd != -1 ? quoteEnd : regex.length());
+              if (quoted.length() == 0 || !isLatin1(quoted)) {
+                return null;
+              }
+              // the last quoted char is the atom, since a quantifier may follow \E
+              if (run.length() == 0) {
+                runOffset = width;
+              }
+              run.append(quoted, 0, quoted.length() - 1);
+              width = width != -1 ? width + quoted.length() - 1 : -1;
+              literal = quoted.charAt(quoted.length() - 1);
+              atomEnd = quoteEnd != -1 ? quoteEnd + 2 : regex.length();
+            } else if ("dDsSwWhHvV".indexOf(e) != -1) {
+              atomWidth = 1;
+            } else if ("bBAGzZ".indexOf(e) != -1) {
+              atomWidth = 0;
+            } else if (e == 'p' || e == 'P') {
+              atomWidth = 1;
+              if (regex.startsWith("{", i + 2)) {
+                atomEnd = regex.indexOf('}', i + 2) + 1;
+                if (atomEnd == 0) {
+                  return null;
+                }
+              } else {
+                atomEnd = i + 3;
+              }
+            } else if ("tnrfae".indexOf(e) != -1) {
+              literal = "\t\n\r\f\u0007\u001b".charAt("tnrfae".indexOf(e));
+            } else if (Character.isLetterOrDigit(e)) {
+              return null; // hex, octal, control, backreference, linebreak...
+            } else {
+              literal = e;
+            }
+          } else if (c == '[') {
+            atomEnd = endOfClass(regex, i);
+            atomWidth = 1;
+            if (atomEnd == -1) {
+              return null;
+            }
+          } else if (c == '(') {
+            if (regex.startsWith("(?", i) && i + 2 < regex.length()
+                && "idmsuxU-".indexOf(regex.charAt(i + 2)) != -1) {
+              return null; // inline flags may change how literals match
+            }
+            atomEnd = endOfGroup(regex, i);
+            if (atomEnd == -1) {
+              return null;
+            }
+          } else if (c == '.') {
+            atomWidth = 1;
+          } else if (c == '^' || c == '$') {
+            atomWidth = 0;
+          } else if ("|)*+?{".indexOf(c) != -1) {
+            return null;
+          } else {
+            literal = c;
+          }
+        }
+
+        // parse a quantifier, if any
+        int min = 1;
+        int max = 1;
+        int next = atomEnd;
+        if (next < regex.length()) {
+          char q = regex.charAt(next);
+          if (q == '?' || q == '*' || q == '+') {
+            min = q == '+' ? 1 : 0;
+            max = q == '?' ? 1 : -1;
+            next++;
+          } else if (q == '{') {
+            int close = regex.indexOf('}', next);
+            if (close == -1) {
+              return null;
+            }
+            String[] bounds = regex.substring(next + 1, close).split(",", -1);
+            try {
+              min = Integer.parseInt(bounds[0]);
+              max = bounds.length == 1 ? min
+                  : bounds[1].length() == 0 ? -1
+                  : Integer.parseInt(bounds[1]);
+            } catch (NumberFormatException e) {
+              return null;
+            }
+            next = close + 1;
+          }
+          if (next > atomEnd && next < regex.length()
+              && (regex.charAt(next) == '?' || regex.charAt(next) == '+')) {
+            next++; // reluctant or possessive
+          }
+        }
+
+        if (literal != -1 && literal > 0xff) {
+          return null; // can't occur in ISO-8859-1 text
+        }
+        if (literal != -1 && min >= 1) {
+          if (run.length() == 0) {
+            runOffset = width;
+          }
+          for (int r = 0; r < min; r++) {
+            run.append((char) literal);
+          }
+        }
+        if (literal == -1 || min != max) {
+          // the run can't continue past this atom
+          if (run.length() > 0) {
+            // a literal at a fixed offset is worth more since the matcher needn't search for it
+            if (best == null
+                || run.length() * (runOffset != -1 ? 2 : 1)
+                    > best.length() * (bestOffset != -1 ? 2 : 1)) {
+              best = run.toString();
+              bestOffset = runOffset;
+            }
+            run.setLength(0);
+          }
+        }
+
+        int fixedAtomWidth = literal != -1 ? 1 : atomWidth;
+        width = width == -1 || fixedAtomWidth == -1 || min != max
+            ? -1
+            : width + fixedAtomWidth * min;
+        i = next;
+      }
+
+      return best != null ? new Prefilter(best, bestOffset) : null;
+    }
+
+    private static boolean isLatin1(String s) {
+      for (int i = 0; i < s.length(); i++) {
+        if (s.charAt(i) > 0xff) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Returns the index after the character class that starts at {@code start}, or -1 if it's
+     * unclosed or uses syntax this doesn't understand. As in Pattern, a ']' first in a class,
+     * or first after its '^', is a literal.
+     */
+    private static int endOfClass(String regex, int start) {
+      int i = start + 1;
+      if (regex.startsWith("^", i)) {
+        i++;
+      }
+      if (regex.startsWith("]", i)) {
+        i++;
+      }
+      for (; i < regex.length(); i++) {
+        char c = regex.charAt(i);
+        if (c == '\\') {
+          if (regex.startsWith("Q", i + 1)) {
+            int quoteEnd = regex.indexOf("\\E", i + 2);
+            if (quoteEnd == -1) {
+              return -1;
+            }
+            i = quoteEnd + 1;
+          } else if (regex.startsWith("c", i + 1)) {
+            return -1; // a control character, whose letter may be ']'
+          } else {
+            i++;
+          }
+        } else if (c == '[') {
+          i = endOfClass(regex, i) - 1;
+          if (i < 0) {
+            return -1;
+          }
+        } else if (c == ']') {
+          return i + 1;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Returns the index after the group that starts at {@code start}, or -1.
+     */
+    private static int endOfGroup(String regex, int start) {
+      int depth = 0;
+      for (int i = start; i < regex.length(); i++) {
+        char c = regex.charAt(i);
+        if (c == '\\') {
+          if (regex.startsWith("Q", i + 1)) {
+            int quoteEnd = regex.indexOf("\\E", i + 2);
+            if (quoteEnd == -1) {
+              return -1;
+            }
+            i = quoteEnd + 1;
+          } else {
+            i++;
+          }
+        } else if (c == '[') {
+          i = endOfClass(regex, i) - 1;
+          if (i < 0) {
+            return -1;
+          }
+        } else if (c == '(') {
+          depth++;
+        } else if (c == ')' && --depth == 0) {
+          return i + 1;
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Finds a prefilter's literal in a file. The file is read in blocks with positional reads and
+   * searched with the Boyer-Moore-Horspool algorithm, so most bytes are skipped without being
+   * compared.
+   */
+  static class Searcher {
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    final byte[] literal;
+    final int[] skip;
+    final FileChannel channel;
+    final byte[] block = new byte[Math.max(BLOCK_SIZE, Prefilter.MAX_LITERAL)];
+    long blockStart = -1;
+    int blockLength;
+
+    Searcher(Prefilter prefilter, FileChannel channel) {
+      this.literal = prefilter.literal;
+      this.skip = prefilter.skip;
+      this.channel = channel;
+    }
+
+    /**
+     * Returns the position of the first occurrence of the literal in {@code [from, limit)}, or -1
+     * if there is none.
+     */
+    long indexOf(long from, long limit) throws IOException {
+      int m = literal.length;
+      int lastByte = literal[m - 1];
+      long position = from;
+      while (position + m <= limit) {
+        if (position < blockStart || position + m > blockStart + blockLength) {
+          load(position, limit);
+          if (blockLength < m) {
+            return -1; // the file was truncated, and ends before limit
+          }
+        }
+        int i = (int) (position - blockStart);
+        int last = blockLength - m;
+        while (i <= last) {
+          byte b = block[i + m - 1];
+          if (b == lastByte && matchesAt(i)) {
+            return blockStart + i;
+          }
+          i += skip[b & 0xff];
+        }
+        position = blockStart + i;
+      }
+      return -1;
+    }
+
+    private boolean matchesAt(int i) {
+      for (int j = 0; j < literal.length - 1; j++) {
+        if (block[i + j] != literal[j]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void load(long position, long limit) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, limit - position));
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) == -1) {
+          break;
+        }
+      }
+      blockStart = position;
+      blockLength = buffer.position();
+    }
+  }
+
+  /**
+   * The patterns to strip. Patterns that are plain literals are matched together by an {@link
+   * Automaton}; the others are combined into a single alternation, each alternative in its own
+   * group so that the pattern that matched can be identified.
+   */
+  static class PatternSet {
+    final List<String> sources;
+    /** The patterns that aren't literals, or null if all of them are. */
+    final Pattern regex;
+    /** The group of each alternative in {@code regex}, and the index of its pattern. */
+    final int[] alternativeGroups;
+    final int[] alternativePatterns;
+    /** The literal patterns, or null if there are none. */
+    final Automaton literals;
+
+    PatternSet(List<String> sources, Pattern regex, int[] alternativeGroups,
+        int[] alternativePatterns, Automaton literals) {
+      this.sources = sources;
+      this.regex = regex;
+      this.alternativeGroups = alternativeGroups;
+      this.alternativePatterns = alternativePatterns;
+      this.literals = literals;
+    }
+
+    static PatternSet of(Pattern pattern) {
+      return new PatternSet(Collections.singletonList(pattern.pattern()), pattern,
+          new int[] { 0 }, new int[] { 0 }, null);
+    }
+
+    static PatternSet compile(List<String> sources) {
+      List<String> regexes = new ArrayList<String>();
+      List<Integer> regexPatterns = new ArrayList<Integer>();
+      List<byte[]> literals = new ArrayList<byte[]>();
+      List<Integer> literalPatterns = new ArrayList<Integer>();
+      for (int i = 0; i < sources.size(); i++) {
+        String source = sources.get(i);
+        byte[] literal = literal(source);
+        if (literal != null) {
+          literals.add(literal);
+          literalPatterns.add(i);
+        } else {
+          Pattern.compile(source); // fail with this pattern's syntax error, not the alternation's
+          regexes.add(source);
+          regexPatterns.add(i);
+        }
+      }
+
+      Pattern regex = null;
+      int[] groups = new int[regexes.size()];
+      int[] patterns = new int[regexes.size()];
+      if (regexes.size() == 1) {
+        regex = Pattern.compile(regexes.get(0));
+        patterns[0] = regexPatterns.get(0);
+      } else if (regexes.size() > 1) {
+        StringBuilder alternation = new StringBuilder();
+        int groupCount = 0;
+        for (int r = 0; r < regexes.size(); r++) {
+          String source = regexes.get(r);
+          groups[r] = groupCount + 1;
+          patterns[r] = regexPatterns.get(r);
+          alternation.append(r > 0 ? "|(" : "(")
+              .append(PatternSyntax.renumberBackreferences(source, groups[r]))
+              .append(')');
+          groupCount += 1 + Pattern.compile(source).matcher("").groupCount();
+        }
+        regex = Pattern.compile(alternation.toString());
+      }
+
+      Automaton automaton = null;
+      if (!literals.isEmpty()) {
+        int[] indices = new int[literalPatterns.size()];
+        for (int i = 0; i < indices.length; i++) {
+          indices[i] = literalPatterns.get(i);
+        }
+        automaton = new Automaton(literals, indices);
+      }
+      return new PatternSet(sources, regex, groups, patterns, automaton);
+    }
+
+    /**
+     * Reads one pattern per line from {@code file}, skipping blank lines and lines that start
+     * with {@code #}.
+     */
+    static PatternSet read(File file) throws IOException {
+      List<String> sources = new ArrayList<String>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.length() > 0 && !line.startsWith("#")) {
+            sources.add(line);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+      if (sources.isEmpty()) {
+        throw new IllegalArgumentException("No patterns in " + file);
+      }
+      return compile(sources);
+    }
+
+    /**
+     * Returns the index of the pattern whose alternative found the current match of {@code
+     * matcher}.
+     */
+    int patternOf(Matcher matcher) {
+      for (int r = 0; r < alternativeGroups.length - 1; r++) {
+        if (matcher.start(alternativeGroups[r]) != -1) {
+          return alternativePatterns[r];
+        }
+      }
+      return alternativePatterns[alternativeGroups.length - 1];
+    }
+
+    int maxLiteralLength() {
+      return literals != null ? literals.maxLength : 0;
+    }
+
+    /**
+     * Returns the ISO-8859-1 bytes matched by {@code regex} if it is a plain literal, possibly
+     * with escaped punctuation, or null if it isn't.
+     */
+    static byte[] literal(String regex) {
+      byte[] result = new byte[regex.length()];
+      int length = 0;
+      for (int i = 0; i < regex.length(); i++) {
+        char c = regex.charAt(i);
+        if (c == '\\' && i + 1 < regex.length()
+            && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+          c = regex.charAt(++i);
+        } else if ("\\^$.|?*+()[]{}".indexOf(c) != -1 || c > 0xff) {
+          return null;
+        }
+        result[length++] = (byte) c;
+      }
+      return length > 0 ? Arrays.copyOf(result, length) : null;
+    }
+  }
+
+  /**
+   * An Aho-Corasick automaton that finds any number of literals in a single pass over the input.
+   * Failure transitions are folded into a complete transition table, so each input byte costs a
+   * single lookup whatever the number of literals.
+   */
+  static class Automaton {
+    /** The next state for each state and byte value, at {@code state << 8 | b}. */
+    final int[] transitions;
+    /** For each state, the pattern of the longest literal that ends there, or -1. */
+    final int[] patterns;
+    /** For each state, the length of the literal that ends there. */
+    final int[] lengths;
+    final int maxLength;
+
+    Automaton(List<byte[]> literals, int[] literalPatterns) {
+      int stateLimit = 1;
+      int maxLength = 0;
+      for (byte[] literal : literals) {
+        stateLimit += literal.length;
+        maxLength = Math.max(maxLength, literal.length);
+      }
+      this.maxLength = maxLength;
+      int[] transitions = new int[stateLimit << 8];
+      int[] patterns = new int[stateLimit];
+      int[] lengths = new int[stateLimit];
+      Arrays.fill(transitions, -1);
+      Arrays.fill(patterns, -1);
+
+      // build a trie of the literals; a duplicate literal keeps the first pattern
+      int stateCount = 1;
+      for (int i = 0; i < literals.size(); i++) {
+        byte[] literal = literals.get(i);
+        int state = 0;
+        for (byte b : literal) {
+          int t = state << 8 | (b & 0xff);
+          if (transitions[t] == -1) {
+            transitions[t] = stateCount++;
+          }
+          state = transitions[t];
+        }
+        if (patterns[state] == -1) {
+          patterns[state] = literalPatterns[i];
+          lengths[state] = literal.length;
+        }
+      }
+
+      // in breadth-first order, point each missing transition to where the failure state goes
+      int[] failures = new int[stateCount];
+      int[] queue = new int[stateCount];
+      int head = 0;
+      int tail = 0;
+      for (int b = 0; b < 256; b++) {
+        int next = transitions[b];
+        if (next == -1) {
+          transitions[b] = 0;
+        } else {
+          queue[tail++] = next;
+        }
+      }
+      while (head < tail) {
+        int state = queue[head++];
+        int failure = failures[state];
+        if (patterns[state] == -1) {
+          patterns[state] = patterns[failure];
+          lengths[state] = lengths[failure];
+        }
+        for (int b = 0; b < 256; b++) {
+          int next = transitions[state << 8 | b];
+          if (next == -1) {
+            transitions[state << 8 | b] = transitions[failure << 8 | b];
+          } else {
+            failures[next] = transitions[failure << 8 | b];
+            queue[tail++] = next;
+          }
+        }
+      }
+
+      this.transitions = Arrays.copyOf(transitions, stateCount << 8);
+      this.patterns = Arrays.copyOf(patterns, stateCount);
+      this.lengths = Arrays.copyOf(lengths, stateCount);
+    }
+  }
+
+  /**
+   * Runs an {@link Automaton} over a file, read in blocks with positional reads, or over a
+   * {@link StreamWindow}.
+   */
+  static class LiteralSearcher {
+    final Automaton automaton;
+    final FileChannel channel;
+    final StreamWindow window;
+    byte[] block;
+    long blockStart = -1;
+    int blockLength;
+
+    /** The last literal found. */
+    long start;
+    long end;
+    int pattern;
+
+    LiteralSearcher(Automaton automaton, FileChannel channel, StreamWindow window) {
+      this.automaton = automaton;
+      this.channel = channel;
+      this.window = window;
+      this.block = window != null ? window.buffer : new byte[Searcher.BLOCK_SIZE];
+    }
+
+    void reset() {
+      blockStart = -1;
+      blockLength = 0;
+    }
+
+    /**
+     * Finds the leftmost literal in {@code [from, limit)}, preferring the pattern listed first
+     * among literals that start at the same position. Returns false if there is none.
+     */
+    boolean find(long from, long limit) throws IOException {
+      int[] transitions = automaton.transitions;
+      int[] patterns = automaton.patterns;
+      int state = 0;
+      long stop = limit;
+      start = -1;
+      for (long position = from; position < stop; ) {
+        if (position < blockStart || position >= blockStart + blockLength) {
+          load(position, limit);
+          if (blockLength == 0) {
+            break;
+          }
+        }
+        int i = (int) (position - blockStart);
+        int blockStop = (int) Math.min(blockLength, stop - blockStart);
+        for (; i < blockStop; i++) {
+          state = transitions[state << 8 | (block[i] & 0xff)];
+          int found = patterns[state];
+          if (found != -1) {
+            long foundEnd = blockStart + i + 1;
+            long foundStart = foundEnd - automaton.lengths[state];
+            if (start == -1 || foundStart < start || foundStart == start && found < pattern) {
+              start = foundStart;
+              end = foundEnd;
+              pattern = found;
+              // a literal that starts later can't win, so stop once none can start earlier
+              stop = Math.min(stop, start + automaton.maxLength);
+              blockStop = (int) Math.min(blockStop, stop - blockStart);
+            }
+          }
+        }
+        position = blockStart + i;
+      }
+      return start != -1;
+    }
+
+    private void load(long position, long limit) throws IOException {
+      if (window != null) {
+        blockStart = 0;
+        blockLength = window.length();
+        return;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, limit - position));
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) == -1) {
+          break;
+        }
+      }
+      blockStart = position;
+      blockLength = buffer.position();
+    }
+  }
+
+  /**
+   * Writes stripped output by copying spans of the input, interleaved with replacement text.
+   */
+  abstract static class Output {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Copies the input bytes in {@code [start, end)} to the output.
+     */
+    abstract void copy(long start, long end) throws IOException;
+
+    abstract void write(byte[] bytes) throws IOException;
+
+    abstract void flush() throws IOException;
+
+    abstract void close() throws IOException;
+  }
+
+  /**
+   * Writes a stripped file by copying spans of the original's bytes, so the output is
+   * byte-for-byte identical to the input outside of the matches regardless of the platform's
+   * charset. Large spans are moved by the kernel with {@link FileChannel#transferTo}; small spans
+   * are gathered in a buffer so that dense matches don't cost a system call each.
+   */
+  static class ChannelOutput extends Output {
+    final FileChannel source;
+    final FileChannel target;
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    ChannelOutput(FileChannel source, FileChannel target) {
+      this.source = source;
+      this.target = target;
+    }
+
+    void copy(long start, long end) throws IOException {
+      long count = end - start;
+      if (count > buffer.remaining()) {
+        flush();
+      }
+      if (count > buffer.remaining()) {
+        while (count > 0) {
+          long transferred = source.transferTo(start, count, target);
+          if (transferred <= 0) {
+            throw new EOFException();
+          }
+          start += transferred;
+          count -= transferred;
+        }
+        return;
+      }
+
+      buffer.limit(buffer.position() + (int) count);
+      while (buffer.hasRemaining()) {
+        if (source.read(buffer, end - buffer.remaining()) == -1) {
+          throw new EOFException();
+        }
+      }
+      buffer.limit(buffer.capacity());
+    }
+
+    void write(byte[] bytes) throws IOException {
+      if (bytes.length > buffer.remaining()) {
+        flush();
+      }
+      if (bytes.length > buffer.remaining()) {
+        ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+        while (wrapped.hasRemaining()) {
+          target.write(wrapped);
+        }
+      } else {
+        buffer.put(bytes);
+      }
+    }
+
+    void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        target.write(buffer);
+      }
+      buffer.clear();
+    }
+
+    void close() throws IOException {
+      flush();
+      target.close();
+    }
+  }
+
+  /**
+   * Builds a small file's output in memory, copying spans of the original with positional reads.
+   * Throws {@link BufferOverflowException} if the output doesn't fit.
+   */
+  static class BufferOutput extends Output {
+    final FileChannel source;
+    final ByteBuffer buffer;
+
+    BufferOutput(FileChannel source, ByteBuffer buffer) {
+      this.source = source;
+      this.buffer = buffer;
+    }
+
+    void copy(long start, long end) throws IOException {
+      if (end - start > buffer.remaining()) {
+        throw new BufferOverflowException();
+      }
+      buffer.limit(buffer.position() + (int) (end - start));
+      while (buffer.hasRemaining()) {
+        if (source.read(buffer, end - buffer.remaining()) == -1) {
+          throw new EOFException();
+        }
+      }
+      buffer.limit(buffer.capacity());
+    }
+
+    void write(byte[] bytes) {
+      buffer.put(bytes);
+    }
+
+    void flush() {}
+
+    void close() {}
+  }
+
+  /**
+   * Direct buffers for stripping small files, reused across files. At most {@code maxDirect}
+   * direct buffers are ever allocated, so the pool's native memory is bounded however many
+   * threads strip at once; past that, threads get heap buffers that aren't pooled.
+   */
+  static class BufferPool {
+    final int capacity;
+    final int maxDirect;
+    final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    final AtomicInteger directCount = new AtomicInteger();
+
+    BufferPool(int capacity, int maxDirect) {
+      this.capacity = capacity;
+      this.maxDirect = maxDirect;
+    }
+
+    ByteBuffer take() {
+      ByteBuffer result = buffers.poll();
+      if (result != null) {
+        return result;
+      }
+      if (directCount.incrementAndGet() <= maxDirect) {
+        return ByteBuffer.allocateDirect(capacity);
+      }
+      directCount.decrementAndGet();
+      return ByteBuffer.allocate(capacity);
+    }
 
-  public Strip(Pattern pattern, Set<File> files, boolean clobber) {
-    this.pattern = pattern;
-    this.files = files;
-    this.clobber = clobber;
+    void give(ByteBuffer buffer) {
+      if (buffer.isDirect()) {
+        buffer.clear();
+        buffers.offer(buffer);
+      }
+    }
   }
 
-  private void strip() throws IOException {
-    for (File file : files) {
-      FileCharSequence fileCharSequence = new FileCharSequence(file);
+  /**
+   * Writes spans of a {@link StreamWindow} to a stream. Spans must still be in the window.
+   */
+  static class StreamOutput extends Output {
+    final StreamWindow window;
+    final OutputStream out;
 
-      File stripped = File.createTempFile(file.getName(), ".strip");
-      BufferedWriter out = new BufferedWriter(new FileWriter(stripped));
-      int numberFound = 0;
+    StreamOutput(StreamWindow window, OutputStream out) {
+      this.window = window;
+      this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+    }
 
-      // strip to a copy
-      int position = 0;
-      Matcher matcher = pattern.matcher(fileCharSequence);
-      while (matcher.find(position)) {
-        out.append(fileCharSequence.subSequence(position, matcher.start()));
-        position = matcher.end();
-        numberFound++;
+    void copy(long start, long end) throws IOException {
+      out.write(window.buffer, (int) (start - window.base), (int) (end - start));
+    }
+
+    void write(byte[] bytes) throws IOException {
+      out.write(bytes);
+    }
+
+    void flush() throws IOException {
+      out.flush();
+    }
+
+    void close() throws IOException {
+      out.flush();
+    }
+  }
+
+  /**
+   * Discards its output, for when matches are listed rather than stripped.
+   */
+  static class NullOutput extends Output {
+    void copy(long start, long end) {}
+
+    void write(byte[] bytes) {}
+
+    void flush() {}
+
+    void close() {}
+  }
+
+  /**
+   * Counts the lines of a stream as a {@link StreamWindow} slides past them, so matches can be
+   * listed by line without indexing the whole stream. Positions must not go backwards.
+   */
+  static class LineCounter {
+    /** Every newline before this stream offset has been counted. */
+    long counted;
+    long line = 1;
+    long lineStart;
+
+    void advance(StreamWindow window, long position) {
+      for (long p = counted; p < position; p++) {
+        if (window.buffer[(int) (p - window.base)] == '\n') {
+          line++;
+          lineStart = p + 1;
+        }
       }
-      out.append(fileCharSequence.subSequence(position, fileCharSequence.length()));
-      out.close();
-      fileCharSequence.close();
+      counted = Math.max(counted, position);
+    }
+  }
 
-      // move copy over original
-      if (numberFound > 0) {
-        if (clobber) {
-          copy(stripped, file);
-          System.out.println("Stripped " + numberFound + " from " + file);
-        } else {
-          System.out.println("Stripped " + numberFound + " from " + file + " at " + stripped);
+  /**
+   * Gives up matching at a deadline, so that a pattern that backtracks catastrophically can't
+   * stall a run. The clock is only read every {@code CHECK_INTERVAL} chars, which keeps the check
+   * cheap relative to the matching itself.
+   */
+  static class DeadlineCharSequence implements CharSequence {
+    static final int CHECK_INTERVAL = 4096;
+
+    final CharSequence delegate;
+    /** The file position of the delegate's first char, for reporting where matching stopped. */
+    final long base;
+    final long deadline;
+    private int countdown = CHECK_INTERVAL;
+
+    DeadlineCharSequence(CharSequence delegate, long base, long deadline) {
+      this.delegate = delegate;
+      this.base = base;
+      this.deadline = deadline;
+    }
+
+    public int length() {
+      return delegate.length();
+    }
+
+    public char charAt(int index) {
+      if (--countdown == 0) {
+        countdown = CHECK_INTERVAL;
+        if (System.nanoTime() - deadline > 0) {
+          throw new DeadlineExceededException(base + index);
+        }
+      }
+      return delegate.charAt(index);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+      return delegate.subSequence(start, end);
+    }
+
+    @Override public String toString() {
+      return delegate.toString();
+    }
+  }
+
+  /**
+   * Thrown when matching a file takes longer than {@code --timeout}. The position is where the
+   * matcher was reading when it gave up, which is usually inside the pathological input.
+   */
+  static class DeadlineExceededException extends RuntimeException {
+    private static final long serialVersionUID = 0;
+
+    final long position;
+
+    DeadlineExceededException(long position) {
+      super("deadline exceeded at " + position);
+      this.position = position;
+    }
+  }
+
+  /**
+   * A window over a stream of {@code ISO-8859-1} bytes. The window slides forward as the stream
+   * is consumed; {@code base} is the stream offset of the first byte in the window.
+   */
+  static class StreamWindow implements CharSequence {
+    final byte[] buffer;
+    int count;
+    long base;
+    long charAtCount;
+
+    StreamWindow(int capacity) {
+      buffer = new byte[capacity];
+    }
+
+    boolean isFull() {
+      return count == buffer.length;
+    }
+
+    /**
+     * Discards the bytes before {@code from} and reads more input into the space made available.
+     * Returns false if the stream is exhausted.
+     */
+    boolean fill(InputStream in, int from) throws IOException {
+      System.arraycopy(buffer, from, buffer, 0, count - from);
+      count -= from;
+      base += from;
+      return fill(in);
+    }
+
+    boolean fill(InputStream in) throws IOException {
+      if (count == buffer.length) {
+        return true;
+      }
+      int read = in.read(buffer, count, buffer.length - count);
+      if (read == -1) {
+        return false;
+      }
+      count += read;
+      return true;
+    }
+
+    public int length() {
+      return count;
+    }
+
+    public char charAt(int index) {
+      charAtCount++;
+      return (char) (buffer[index] & 0xff);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+      return toString().substring(start, end);
+    }
+
+    @Override public String toString() {
+      try {
+        return new String(buffer, 0, count, "ISO-8859-1");
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /**
+   * Remembers which files had no matches for a set of patterns, so that they can be skipped while
+   * they're unchanged. A file whose size and modification time are unchanged is assumed to be
+   * unchanged; one whose modification time alone differs is hashed to confirm. Safe for use by
+   * multiple threads.
+   *
+   * <p>The index is a text file. Its first line identifies the pattern set; an index for other
+   * patterns is discarded. Each other line holds a file's size, modification time, CRC-32 and
+   * path, separated by tabs.
+   */
+  static class Index {
+    static final String HEADER = "strip-index 1 ";
+    /** Modification times this recent may be followed by another write in the same tick. */
+    static final long RACY_MILLIS = 2000;
+
+    final File file;
+    final String fingerprint;
+    final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    Index(File file, String fingerprint) {
+      this.file = file;
+      this.fingerprint = fingerprint;
+    }
+
+    static Index load(File file, PatternSet patterns) throws IOException {
+      Index result = new Index(file, fingerprint(patterns));
+      if (!file.exists()) {
+        return result;
+      }
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+        if (!(HEADER + result.fingerprint).equals(reader.readLine())) {
+          return result;
+        }
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] fields = line.split("\t", 4);
+          if (fields.length == 4) {
+            result.entries.put(fields[3], new Entry(Long.parseLong(fields[0]),
+                Long.parseLong(fields[1]), Long.parseLong(fields[2], 16)));
+          }
+        }
+      } finally {
+        reader.close();
+      }
+      return result;
+    }
+
+    /**
+     * Returns true if {@code file} had no matches when it was last stripped and hasn't changed
+     * since.
+     */
+    boolean isClean(File file, long size, long modified) throws IOException {
+      String path = file.getAbsolutePath();
+      Entry entry = entries.get(path);
+      if (entry == null || entry.size != size) {
+        return false;
+      }
+      if (entry.modified == modified) {
+        return true;
+      }
+      long hash = hash(file);
+      if (hash != entry.hash || file.length() != size || file.lastModified() != modified) {
+        return false;
+      }
+      entries.put(path, new Entry(size, racy(modified) ? -1 : modified, hash));
+      return true;
+    }
+
+    /**
+     * Records that {@code file}, whose size and modification time were read before it was
+     * stripped, has no matches. Nothing is recorded if it has changed since.
+     */
+    void markClean(File file, long size, long modified) throws IOException {
+      String path = file.getAbsolutePath();
+      if (path.indexOf('\n') != -1) {
+        return;
+      }
+      long hash = hash(file);
+      if (file.length() != size || file.lastModified() != modified) {
+        entries.remove(path);
+        return;
+      }
+      // a later write in the same tick wouldn't change the modification time; hash it next time
+      entries.put(path, new Entry(size, racy(modified) ? -1 : modified, hash));
+    }
+
+    /**
+     * Returns true if {@code file} had no matches when it was last stripped and has the same
+     * size and modification time. This doesn't read the file.
+     */
+    boolean isUnchanged(File file, long size, long modified) {
+      Entry entry = entries.get(file.getAbsolutePath());
+      return entry != null && entry.size == size && entry.modified == modified;
+    }
+
+    void forget(File file) {
+      entries.remove(file.getAbsolutePath());
+    }
+
+    private static boolean racy(long modified) {
+      return modified > System.currentTimeMillis() - RACY_MILLIS;
+    }
+
+    /**
+     * Writes the index to a temporary file that is then renamed into place, so that an
+     * interrupted run leaves the previous index intact. If the temporary file can't be made or
+     * renamed, as in a directory we can't write, the index is overwritten in place instead.
+     */
+    void save() throws IOException {
+      File temp = null;
+      try {
+        temp = createTempFile("." + file.getName() + ".", ".tmp",
+            file.getAbsoluteFile().getParentFile());
+        write(temp);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return;
+      } catch (IOException e) {
+        if (temp != null) {
+          temp.delete();
+        }
+      }
+      write(file);
+    }
+
+    private void write(File target) throws IOException {
+      Writer writer = new BufferedWriter(
+          new OutputStreamWriter(new FileOutputStream(target), "UTF-8"));
+      try {
+        writer.write(HEADER + fingerprint + "\n");
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+          Entry value = entry.getValue();
+          writer.write(value.size + "\t" + value.modified + "\t"
+              + Long.toHexString(value.hash) + "\t" + entry.getKey() + "\n");
+        }
+      } finally {
+        writer.close();
+      }
+    }
+
+    /**
+     * Returns a digest of the patterns and their flags, so that an index is only used with the
+     * patterns it was built for.
+     */
+    static String fingerprint(PatternSet patterns) {
+      try {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        for (String source : patterns.sources) {
+          digest.update(source.getBytes("UTF-8"));
+          digest.update((byte) 0);
+        }
+        if (patterns.regex != null) {
+          digest.update(Integer.toString(patterns.regex.flags()).getBytes("UTF-8"));
+        }
+        StringBuilder result = new StringBuilder();
+        for (byte b : digest.digest()) {
+          result.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        }
+        return result.toString();
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    /**
+     * Returns the CRC-32 of {@code file}'s contents.
+     */
+    static long hash(File file) throws IOException {
+      CRC32 crc = new CRC32();
+      FileChannel channel = new FileInputStream(file).getChannel();
+      try {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Searcher.BLOCK_SIZE);
+        while (channel.read(buffer) != -1) {
+          buffer.flip();
+          crc.update(buffer);
+          buffer.clear();
+        }
+      } finally {
+        channel.close();
+      }
+      return crc.getValue();
+    }
+  }
+
+  static class Entry {
+    final long size;
+    final long modified;
+    final long hash;
+
+    Entry(long size, long modified, long hash) {
+      this.size = size;
+      this.modified = modified;
+      this.hash = hash;
+    }
+  }
+
+  /**
+   * What the inputs cost to strip, for {@code --stats}: their bytes, matches, the time taken and
+   * the number of chars read by regular expressions. A high ratio of chars read to bytes shows a
+   * pattern that backtracks. Only the reporting thread adds to the stats.
+   *
+   * <p>Under {@code --watch} the inputs never end, so this keeps totals, a histogram, a sample of
+   * {@link #SAMPLE_SIZE} latencies for the percentiles and the {@link #SLOWEST_SIZE} slowest files,
+   * rather than every result. The percentiles are exact until more files than that are stripped.
+   */
+  static class Stats {
+    static final int SAMPLE_SIZE = 10000;
+    static final int SLOWEST_SIZE = 100;
+
+    private final Random random = new Random();
+    private long files;
+    private long bytes;
+    private long matches;
+    private long charAtCount;
+    private long maxNanos;
+    /**
+     * The number of files in each latency bucket. Bucket {@code i} holds latencies of less than
+     * {@code 2^i} microseconds, and at least half that.
+     */
+    private final long[] histogram = new long[64];
+    /** A uniform sample of the latencies, kept by reservoir sampling. */
+    private final long[] sample = new long[SAMPLE_SIZE];
+    /** The slowest files, fastest first. */
+    private final PriorityQueue<FileCost> slowest = new PriorityQueue<FileCost>();
+
+    void add(Result result) {
+      files++;
+      bytes += result.bytes;
+      matches += result.matches;
+      charAtCount += result.charAtCount;
+      maxNanos = Math.max(maxNanos, result.nanos);
+      histogram[64 - Long.numberOfLeadingZeros(result.nanos / 1000)]++;
+
+      if (files <= SAMPLE_SIZE) {
+        sample[(int) files - 1] = result.nanos;
+      } else {
+        long slot = (long) (random.nextDouble() * files);
+        if (slot < SAMPLE_SIZE) {
+          sample[(int) slot] = result.nanos;
+        }
+      }
+
+      if (slowest.size() < SLOWEST_SIZE || result.nanos > slowest.peek().nanos) {
+        slowest.add(new FileCost(result));
+        if (slowest.size() > SLOWEST_SIZE) {
+          slowest.remove();
+        }
+      }
+    }
+
+    static String describe(Result result) {
+      return String.format(Locale.US, "(%d bytes, %.2f ms, %d charAt)",
+          result.bytes, result.nanos / 1e6, result.charAtCount);
+    }
+
+    /**
+     * Returns the sampled latencies in ascending order.
+     */
+    private long[] sortedNanos() {
+      long[] result = Arrays.copyOf(sample, (int) Math.min(files, SAMPLE_SIZE));
+      Arrays.sort(result);
+      return result;
+    }
+
+    /**
+     * Returns the nearest-rank percentile of {@code sorted}.
+     */
+    private static long percentile(long[] sorted, double percentile) {
+      if (sorted.length == 0) {
+        return 0;
+      }
+      int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+      return sorted[Math.max(0, rank - 1)];
+    }
+
+    void print(PrintStream out) {
+      long[] sorted = sortedNanos();
+      out.println(String.format(Locale.US, "charAt calls: %d; latency per file: p50 %.2f ms, "
+          + "p99 %.2f ms, max %.2f ms", charAtCount, percentile(sorted, 50) / 1e6,
+          percentile(sorted, 99) / 1e6, maxNanos / 1e6));
+      long max = 1;
+      int first = histogram.length;
+      int last = -1;
+      for (int i = 0; i < histogram.length; i++) {
+        if (histogram[i] > 0) {
+          max = Math.max(max, histogram[i]);
+          first = Math.min(first, i);
+          last = i;
+        }
+      }
+      for (int i = first; i <= last; i++) {
+        StringBuilder bar = new StringBuilder();
+        for (long b = 0; b < (histogram[i] * 40 + max - 1) / max; b++) {
+          bar.append('#');
         }
+        out.println(String.format(Locale.US, "  < %-8s %-40s %d",
+            formatMicros(1L << i), bar, histogram[i]));
+      }
+    }
+
+    private static String formatMicros(long micros) {
+      if (micros < 1000) {
+        return micros + " us";
+      } else if (micros < 1000000) {
+        return (micros / 1000) + " ms";
       } else {
-        System.out.println("No occurrences in " + file + ", stripped file is " + stripped);
+        return (micros / 1000000) + " s";
+      }
+    }
+
+    /**
+     * Writes the stats as a JSON object.
+     */
+    void writeJson(File file, long elapsedMillis, PatternSet patterns,
+        AtomicLongArray patternMatches) throws IOException {
+      long[] sorted = sortedNanos();
+
+      Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+      try {
+        out.write("{\n");
+        out.write("  \"files\": " + files + ",\n");
+        out.write("  \"bytes\": " + bytes + ",\n");
+        out.write("  \"matches\": " + matches + ",\n");
+        out.write("  \"elapsedMillis\": " + elapsedMillis + ",\n");
+        out.write("  \"bytesPerSecond\": " + bytes * 1000 / Math.max(1, elapsedMillis) + ",\n");
+        out.write("  \"charAtCalls\": " + charAtCount + ",\n");
+        out.write(String.format(Locale.US,
+            "  \"latencyMillis\": {\"p50\": %.3f, \"p99\": %.3f, \"max\": %.3f},\n",
+            percentile(sorted, 50) / 1e6, percentile(sorted, 99) / 1e6, maxNanos / 1e6));
+
+        out.write("  \"histogram\": [");
+        String separator = "";
+        for (int i = 0; i < histogram.length; i++) {
+          if (histogram[i] > 0) {
+            out.write(separator + "{\"belowMicros\": " + (1L << i)
+                + ", \"files\": " + histogram[i] + "}");
+            separator = ", ";
+          }
+        }
+        out.write("],\n");
+
+        out.write("  \"patterns\": [");
+        for (int i = 0; i < patterns.sources.size(); i++) {
+          out.write((i > 0 ? ",\n    " : "\n    ") + "{\"pattern\": "
+              + json(patterns.sources.get(i)) + ", \"matches\": " + patternMatches.get(i) + "}");
+        }
+        out.write("\n  ],\n");
+
+        List<FileCost> slowestFirst = new ArrayList<FileCost>(slowest);
+        Collections.sort(slowestFirst, Collections.reverseOrder());
+        out.write("  \"slowestFiles\": [");
+        for (int i = 0; i < slowestFirst.size(); i++) {
+          FileCost cost = slowestFirst.get(i);
+          out.write((i > 0 ? ",\n    " : "\n    ") + String.format(Locale.US,
+              "{\"file\": %s, \"bytes\": %d, \"matches\": %d, \"millis\": %.3f, "
+              + "\"charAtCalls\": %d}", json(cost.name), cost.bytes, cost.matches,
+              cost.nanos / 1e6, cost.charAtCount));
+        }
+        out.write("\n  ]\n");
+        out.write("}\n");
+      } finally {
+        out.close();
+      }
+    }
+
+    static String json(String s) {
+      StringBuilder result = new StringBuilder().append('"');
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        if (c == '"' || c == '\\') {
+          result.append('\\').append(c);
+        } else if (c < 0x20) {
+          result.append(String.format("\\u%04x", (int) c));
+        } else {
+          result.append(c);
+        }
       }
+      return result.append('"').toString();
     }
   }
 
-  private void copy(File source, File target) throws IOException {
-    byte[] buffer = new byte[1024];
-    BufferedInputStream in = new BufferedInputStream(new FileInputStream(source));
-    BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(target));
+  /**
+   * The numbers {@link Stats} keeps for one of the slowest files; unlike its {@link Result}, this
+   * doesn't hold the file's listing.
+   */
+  static class FileCost implements Comparable<FileCost> {
+    final String name;
+    final long bytes;
+    final int matches;
+    final long nanos;
+    final long charAtCount;
 
-    int read;
-    while ((read = in.read(buffer)) != -1) {
-      out.write(buffer, 0, read);
+    FileCost(Result result) {
+      this.name = result.name;
+      this.bytes = result.bytes;
+      this.matches = result.matches;
+      this.nanos = result.nanos;
+      this.charAtCount = result.charAtCount;
     }
 
-    in.close();
-    out.close();
+    public int compareTo(FileCost other) {
+      return nanos < other.nanos ? -1 : (nanos > other.nanos ? 1 : 0);
+    }
+  }
+
+  static class Result {
+    /** The result for a file that was skipped because it's unchanged since it was last clean. */
+    static final Result SKIPPED = new Result(null, 0, 0);
+
+    final String message;
+    final byte[] listing;
+    final int matches;
+    final long bytes;
+
+    /** True if the input was left unchanged because matching it exceeded {@code --timeout}. */
+    boolean timedOut;
+
+    /** What stripping the input cost, for {@code --stats}. */
+    String name;
+    long nanos;
+    long charAtCount;
+
+    Result(String message, int matches, long bytes) {
+      this(message, null, matches, bytes);
+    }
+
+    Result(String message, byte[] listing, int matches, long bytes) {
+      this.message = message;
+      this.listing = listing;
+      this.matches = matches;
+      this.bytes = bytes;
+    }
   }
 
+  /**
+   * A file as a character sequence. Reads go through a small buffer so that a matcher scanning
+   * the file doesn't make a system call per character; the buffer isn't shared, so each thread
+   * must use its own instance.
+   */
   static class FileCharSequence implements CharSequence {
+    static final int BUFFER_SIZE = 16 * 1024;
+    static final int LINE_BLOCK_SIZE = 64 * 1024;
 
     final RandomAccessFile randomAccess;
+    /** The sequence that views count their reads into. */
+    final FileCharSequence root;
     final long start;
     final long end;
 
+    private byte[] buffer;
+    private long bufferStart = -1;
+    private int bufferLength;
+    long charAtCount;
+
+    /** The positions lines start at, indexed up to {@code linesScanned}. */
+    private long[] lineStarts = { 0 };
+    private int lineCount = 1;
+    private long linesScanned;
+
     public FileCharSequence(File file) throws IOException {
       randomAccess = new RandomAccessFile(file, "r");
+      root = this;
       start = 0;
       end = randomAccess.length();
     }
 
     private FileCharSequence(FileCharSequence prototype, long start, long end) {
       this.randomAccess = prototype.randomAccess;
+      this.root = prototype.root;
       this.start = start;
       this.end = end;
     }
 
+    /**
+     * Returns the length of this sequence.
+     *
+     * @throws IllegalStateException if this is longer than a {@link CharSequence} can index.
+     *     Match on a {@link #window} instead.
+     */
     public int length() {
-      return (int) (end - start);
+      long length = end - start;
+      if (length > Integer.MAX_VALUE) {
+        throw new IllegalStateException("length " + length + " exceeds Integer.MAX_VALUE");
+      }
+      return (int) length;
+    }
+
+    public long longLength() {
+      return end - start;
     }
 
     public char charAt(int index) {
+      root.charAtCount++;
+      long position = start + index;
+      if (position < bufferStart || position >= bufferStart + bufferLength) {
+        fill(position);
+      }
+      return (char) (buffer[(int) (position - bufferStart)] & 0xff);
+    }
+
+    /**
+     * Reads the buffer around {@code position}, keeping some of what precedes it for matchers
+     * that backtrack.
+     */
+    private void fill(long position) {
+      if (buffer == null) {
+        buffer = new byte[BUFFER_SIZE];
+      }
+      long fillStart = Math.max(start, position - BUFFER_SIZE / 4);
+      ByteBuffer target = ByteBuffer.wrap(buffer, 0, (int) Math.min(BUFFER_SIZE, end - fillStart));
       try {
-        randomAccess.seek(start + index);
-        return (char) randomAccess.read();
+        while (target.hasRemaining()) {
+          if (channel().read(target, fillStart + target.position()) == -1) {
+            break;
+          }
+        }
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
+      bufferStart = fillStart;
+      bufferLength = target.position();
     }
 
     public CharSequence subSequence(int start, int end) {
       return new FileCharSequence(this, this.start + start, this.start + end);
     }
 
+    /**
+     * Returns a view of the file from {@code start} to {@code end}, which are file positions.
+     */
+    public FileCharSequence window(long start, long end) {
+      return new FileCharSequence(this, start, end);
+    }
+
+    public FileChannel channel() {
+      return randomAccess.getChannel();
+    }
+
+    /**
+     * Returns the 1-based line holding the byte at {@code position} in the file. Line starts are
+     * indexed as far as the furthest position looked up, so the file is scanned once and each
+     * lookup is a binary search.
+     */
+    public long lineNumber(long position) throws IOException {
+      indexLines(position);
+      int index = Arrays.binarySearch(lineStarts, 0, lineCount, position);
+      return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * Returns the 1-based column, in bytes, of {@code position} in the file.
+     */
+    public long columnNumber(long position) throws IOException {
+      return position - lineStarts[(int) lineNumber(position) - 1] + 1;
+    }
+
+    private void indexLines(long position) throws IOException {
+      if (position <= linesScanned) {
+        return;
+      }
+      ByteBuffer block = ByteBuffer.allocate(LINE_BLOCK_SIZE);
+      while (linesScanned < position) {
+        block.clear();
+        block.limit((int) Math.min(LINE_BLOCK_SIZE, position - linesScanned));
+        int count = channel().read(block, linesScanned);
+        if (count <= 0) {
+          throw new EOFException();
+        }
+        for (int i = 0; i < count; i++) {
+          if (block.get(i) == '\n') {
+            if (lineCount == lineStarts.length) {
+              lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+            }
+            lineStarts[lineCount++] = linesScanned + i + 1;
+          }
+        }
+        linesScanned += count;
+      }
+    }
+
     public void close() throws IOException {
       randomAccess.close();
     }
@@ -133,8 +3535,24 @@ public class Strip {
     }
   }
 
-  public static void main(String[] args) throws IOException {
+  public static void main(String[] args) throws IOException, InterruptedException {
     boolean clobber = false;
+    int jobs = 0;
+    long chunkSize = 0;
+    long maxMatch = DEFAULT_MAX_MATCH;
+    long windowSize = DEFAULT_WINDOW_SIZE;
+    String replacement = null;
+    String patternsFile = null;
+    Fsync fsync = Fsync.NONE;
+    String indexFile = null;
+    List<Glob> includes = new ArrayList<Glob>();
+    List<Glob> excludes = new ArrayList<Glob>();
+    boolean list = false;
+    boolean printStats = false;
+    String statsJson = null;
+    long timeoutMillis = 0;
+    boolean watch = false;
+    long debounceMillis = DEFAULT_DEBOUNCE_MILLIS;
 
     List<String> argsList = new ArrayList<String>(Arrays.asList(args));
     for (Iterator<String> a = argsList.iterator(); a.hasNext(); ) {
@@ -142,26 +3560,170 @@ public class Strip {
       if ("-c".equals(arg) || "--clobber".equals(arg)) {
         clobber = true;
         a.remove();
+      } else if ("-l".equals(arg) || "--list".equals(arg)) {
+        list = true;
+        a.remove();
+      } else if ("--watch".equals(arg)) {
+        watch = true;
+        a.remove();
+      } else if ("--debounce".equals(arg) && a.hasNext()) {
+        a.remove();
+        debounceMillis = Long.parseLong(a.next());
+        a.remove();
+      } else if ("--timeout".equals(arg) && a.hasNext()) {
+        a.remove();
+        timeoutMillis = Long.parseLong(a.next());
+        a.remove();
+      } else if ("--stats".equals(arg)) {
+        printStats = true;
+        a.remove();
+      } else if ("--stats-json".equals(arg) && a.hasNext()) {
+        a.remove();
+        statsJson = a.next();
+        a.remove();
+      } else if (("-j".equals(arg) || "--jobs".equals(arg)) && a.hasNext()) {
+        a.remove();
+        jobs = Integer.parseInt(a.next());
+        a.remove();
+      } else if ("--chunk-size".equals(arg) && a.hasNext()) {
+        a.remove();
+        chunkSize = parseSize(a.next());
+        a.remove();
+      } else if ("--max-match".equals(arg) && a.hasNext()) {
+        a.remove();
+        maxMatch = parseSize(a.next());
+        a.remove();
+      } else if ("--window-size".equals(arg) && a.hasNext()) {
+        a.remove();
+        windowSize = parseSize(a.next());
+        a.remove();
+      } else if (("-r".equals(arg) || "--replace".equals(arg)) && a.hasNext()) {
+        a.remove();
+        replacement = a.next();
+        a.remove();
+      } else if ("--patterns".equals(arg) && a.hasNext()) {
+        a.remove();
+        patternsFile = a.next();
+        a.remove();
+      } else if ("--fsync".equals(arg) && a.hasNext()) {
+        a.remove();
+        fsync = Fsync.valueOf(a.next().toUpperCase(Locale.US));
+        a.remove();
+      } else if ("--index".equals(arg) && a.hasNext()) {
+        a.remove();
+        indexFile = a.next();
+        a.remove();
+      } else if ("--include".equals(arg) && a.hasNext()) {
+        a.remove();
+        includes.add(new Glob(a.next()));
+        a.remove();
+      } else if ("--exclude".equals(arg) && a.hasNext()) {
+        a.remove();
+        excludes.add(new Glob(a.next()));
+        a.remove();
       }
     }
+    if (jobs == 0) {
+      jobs = chunkSize > 0 ? Runtime.getRuntime().availableProcessors() : 1;
+    }
 
-    if (argsList.size() < 2) {
+    if ((patternsFile == null && argsList.size() < 1)
+        || jobs < 1 || chunkSize < 0 || maxMatch < 0 || timeoutMillis < 0 || debounceMillis < 0
+        || (watch && fileArgs(argsList, patternsFile).isEmpty())) {
       printUsage();
       System.exit(1);
     }
 
-    Pattern pattern = Pattern.compile(argsList.get(0));
+    PatternSet patterns = patternsFile != null
+        ? PatternSet.read(new File(patternsFile))
+        : PatternSet.of(Pattern.compile(argsList.get(0)));
 
+    List<String> fileArgs = fileArgs(argsList, patternsFile);
     Set<File> files = new LinkedHashSet<File>();
-    for (String file : argsList.subList(1, argsList.size())) {
+    for (String file : fileArgs) {
       files.add(new File(file));
     }
 
-    new Strip(pattern, files, clobber).strip();
+    Strip strip = new Strip(patterns, files, clobber);
+    strip.jobs = jobs;
+    strip.chunkSize = chunkSize;
+    strip.fsync = fsync;
+    strip.includes = includes;
+    strip.excludes = excludes;
+    strip.timeoutMillis = timeoutMillis;
+    strip.debounceMillis = debounceMillis;
+    if (list) {
+      strip.list = true;
+      strip.log = System.err;
+    }
+    if (printStats || statsJson != null) {
+      strip.stats = new Stats();
+      strip.printStats = printStats;
+      strip.statsJson = statsJson != null ? new File(statsJson) : null;
+    }
+    if (indexFile != null) {
+      strip.index = Index.load(new File(indexFile), patterns);
+    }
+    if (maxMatch >= windowSize || maxMatch > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("--max-match must be less than --window-size ("
+          + windowSize + ") and at most " + Integer.MAX_VALUE);
+    }
+    strip.maxMatch = Math.max((int) maxMatch, patterns.maxLiteralLength());
+    if (windowSize <= 2L * strip.maxMatch || windowSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("--window-size must be more than twice --max-match ("
+          + strip.maxMatch + ") and at most " + Integer.MAX_VALUE);
+    }
+    strip.windowSize = windowSize;
+    if (replacement != null) {
+      strip.replacement = Replacement.parse(replacement,
+          patterns.regex != null ? patterns.regex : Pattern.compile(""));
+      if (patternsFile != null && strip.replacement.maxGroup > 0) {
+        throw new IllegalArgumentException("--replace may only refer to $0 with --patterns");
+      }
+    }
+    if (watch) {
+      strip.watch();
+    } else if (files.isEmpty() || (files.size() == 1 && "-".equals(fileArgs.get(0)))) {
+      strip.stripStream();
+    } else {
+      strip.strip();
+    }
+  }
+
+  /**
+   * Returns the arguments that name files, which follow the pattern unless it's in a file.
+   */
+  private static List<String> fileArgs(List<String> argsList, String patternsFile) {
+    int first = patternsFile != null ? 0 : 1;
+    return first <= argsList.size()
+        ? argsList.subList(first, argsList.size())
+        : Collections.<String>emptyList();
+  }
+
+  /**
+   * Parses a byte count like {@code 65536}, {@code 64k}, {@code 512m} or {@code 2g}.
+   */
+  static long parseSize(String size) {
+    int shift;
+    switch (Character.toLowerCase(size.charAt(size.length() - 1))) {
+      case 'g':
+        shift = 30;
+        break;
+      case 'm':
+        shift = 20;
+        break;
+      case 'k':
+        shift = 10;
+        break;
+      default:
+        return Long.parseLong(size);
+    }
+    return Long.parseLong(size.substring(0, size.length() - 1)) << shift;
   }
 
   public static void printUsage() {
     System.out.println("Usage: Strip <regex> [files]");
+    System.out.println("       Strip --patterns <file> [files]");
     System.out.println();
     System.out.println("  regex: a Java regular expression, with groups");
     System.out.println("  http://java.sun.com/javase/6/docs/api/java/util/regex/Pattern.html");
@@ -171,11 +3733,51 @@ public class Strip {
     System.out.println("         \\w word characters");
     System.out.println("         \\W non-word");
     System.out.println();
-    System.out.println("  files: files to strip. These will be overwritten!");
+    System.out.println("  files: files or directories to strip. These will be overwritten!");
+    System.out.println("         directories are walked recursively, skipping binary files");
+    System.out.println("         if omitted or '-', stdin is stripped to stdout");
     System.out.println();
     System.out.println("flags:");
     System.out.println("  --clober: overwrite the passed in files rather than creating new ones");
-    System.out.println("       -c:");
+    System.out.println("       -c: the stripped file is renamed over the original atomically.");
+    System.out.println("           This breaks hard links and keeps only the permissions, not");
+    System.out.println("           the owner, group or ACLs. Where it can't rename, it copies");
+    System.out.println("  --include: strip only the files in directories that match a glob, like");
+    System.out.println("             *.java. Globs with a / match the path within the directory");
+    System.out.println("  --exclude: skip files and directories that match a glob. Version");
+    System.out.println("             control directories like .git are always skipped");
+    System.out.println("  --list: print each match as file:line:column:match rather than");
+    System.out.println("      -l: stripping. Lines and columns count from 1");
+    System.out.println("  --watch: keep running, stripping files in the directories as they're");
+    System.out.println("           created or modified, once their size has stopped changing");
+    System.out.println("  --debounce: milliseconds a watched file must be quiet before it's");
+    System.out.println("              stripped. 500 by default");
+    System.out.println("  --timeout: give up on a file after this many milliseconds of matching,");
+    System.out.println("             leaving it unchanged, and carry on with the next file");
+    System.out.println("  --stats: print each file's bytes, time and charAt calls, and a");
+    System.out.println("           histogram of the time per file with p50, p99 and max");
+    System.out.println("  --stats-json: write the same stats to a file as JSON, with the 100");
+    System.out.println("                slowest files. Past 10,000 files p50 and p99 are");
+    System.out.println("                estimated from a random sample of them");
+    System.out.println("  --index: a file that remembers which files had no matches, so that");
+    System.out.println("           they're skipped until they change or the patterns do");
+    System.out.println("  --fsync: none (the default), file to sync each stripped file before it");
+    System.out.println("           replaces the original, or all to also sync its directory");
+    System.out.println("   --jobs: strip up to N files at once, using N threads");
+    System.out.println("       -j: output is still reported in the order the files were given");
+    System.out.println("  --replace: replace matches rather than deleting them. $1 or ${name}");
+    System.out.println("       -r: insert groups; a backslash escapes the next character");
+    System.out.println("  --chunk-size: split files larger than this many bytes (eg. 64m) into");
+    System.out.println("                chunks that are matched concurrently");
+    System.out.println("  --max-match: the longest match a chunk may find past its end, and half");
+    System.out.println("               the window used to strip stdin. 64k by default. Longer");
+    System.out.println("               matches fail or are missed rather than being split");
+    System.out.println("  --window-size: files are matched through overlapping windows of up to");
+    System.out.println("                 this many bytes, so that files over 2g can be stripped.");
+    System.out.println("                 1g by default");
+    System.out.println("  --patterns: strip every pattern in a file, one per line, in a single");
+    System.out.println("              pass. Blank lines and lines starting with # are skipped.");
+    System.out.println("              Where matches start together, the earlier line wins");
     System.out.println();
     System.out.println("  Use 'single quotes' to prevent bash from interfering");
     System.out.println();
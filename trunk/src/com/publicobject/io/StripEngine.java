@@ -0,0 +1,408 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Strips the matches of a regular expression from strings, byte buffers and channels, for use
+ * in a long-running process. The pattern and the replacement are compiled once; each thread
+ * keeps a {@link Matcher} that is {@link Matcher#reset(CharSequence) reset} for every input, so
+ * stripping a small input allocates little more than its result.
+ *
+ * <p>Bytes are treated as {@code ISO-8859-1}, as they are by {@link FileCharSequence}. A
+ * replacement character that can't be encoded is written as {@code '?'}.
+ *
+ * <p>An engine is immutable and may be used by multiple threads concurrently.
+ *
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+public final class StripEngine {
+
+  private static final int READ_SIZE = 8 * 1024;
+
+  private final Pattern pattern;
+  private final Template template;
+
+  private final ThreadLocal<Matcher> threadMatcher = new ThreadLocal<Matcher>() {
+    @Override protected Matcher initialValue() {
+      return pattern.matcher("");
+    }
+  };
+
+  /**
+   * Returns an engine that removes the matches of {@code pattern}.
+   */
+  public StripEngine(Pattern pattern) {
+    this(pattern, "");
+  }
+
+  /**
+   * Returns an engine that replaces the matches of {@code pattern} with {@code replacement}. As
+   * with {@link Matcher#appendReplacement}, {@code $n} and {@code ${name}} refer to groups and a
+   * backslash escapes the next character.
+   *
+   * @throws IllegalArgumentException if the replacement refers to a group that doesn't exist.
+   */
+  public StripEngine(Pattern pattern, String replacement) {
+    this.pattern = pattern;
+    this.template = Template.parse(replacement, pattern);
+  }
+
+  /**
+   * Returns an engine that removes the matches of any of {@code regexes}. They are compiled as a
+   * single alternation, so each input is scanned once however many there are; where two match at
+   * the same position, the earlier one wins. Groups are numbered across the whole set, and a
+   * numbered backreference still refers to a group of its own regex.
+   *
+   * @throws java.util.regex.PatternSyntaxException if any of the regexes is invalid.
+   */
+  public static StripEngine compile(List<String> regexes) {
+    if (regexes.isEmpty()) {
+      throw new IllegalArgumentException("no patterns");
+    }
+    if (regexes.size() == 1) {
+      return new StripEngine(Pattern.compile(regexes.get(0)));
+    }
+    StringBuilder alternation = new StringBuilder();
+    int groupCount = 0;
+    for (String regex : regexes) {
+      // fail with this regex's syntax error, not the alternation's
+      int regexGroupCount = Pattern.compile(regex).matcher("").groupCount();
+      alternation.append(alternation.length() == 0 ? "(?:" : "|(?:")
+          .append(PatternSyntax.renumberBackreferences(regex, groupCount))
+          .append(")");
+      groupCount += regexGroupCount;
+    }
+    return new StripEngine(Pattern.compile(alternation.toString()));
+  }
+
+  public Pattern pattern() {
+    return pattern;
+  }
+
+  /**
+   * Returns {@code input} with each match replaced. If nothing matches this returns {@code
+   * input.toString()}, which for a string is the string itself.
+   */
+  public String strip(CharSequence input) {
+    Matcher matcher = threadMatcher.get();
+    matcher.reset(input);
+    try {
+      if (!matcher.find()) {
+        return input.toString();
+      }
+      StringBuilder result = new StringBuilder(input.length());
+      int position = 0;
+      do {
+        result.append(input, position, matcher.start());
+        template.append(matcher, result);
+        position = matcher.end();
+      } while (matcher.find());
+      result.append(input, position, input.length());
+      return result.toString();
+    } finally {
+      matcher.reset(""); // don't hold on to the input
+    }
+  }
+
+  /**
+   * Returns the remaining bytes of {@code input} with each match replaced, and consumes them. If
+   * nothing matches this returns a view of {@code input} rather than a copy.
+   */
+  public ByteBuffer strip(ByteBuffer input) {
+    byte[] bytes;
+    int offset;
+    int count = input.remaining();
+    if (input.hasArray()) {
+      bytes = input.array();
+      offset = input.arrayOffset() + input.position();
+    } else {
+      bytes = new byte[count];
+      input.duplicate().get(bytes);
+      offset = 0;
+    }
+    ByteBuffer result = strip(bytes, offset, count, new Counter());
+    if (result == null) {
+      result = input.slice();
+    }
+    input.position(input.limit());
+    return result;
+  }
+
+  /**
+   * Reads {@code in} to its end, and writes it to {@code out} with each match replaced. The
+   * whole input is held in memory, so this is for inputs that are small enough to fit; {@link
+   * FileCharSequence} is a better fit for big files. Neither channel is closed.
+   *
+   * @return the number of matches replaced.
+   */
+  public int strip(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+    while (in.read(buffer) != -1) {
+      if (!buffer.hasRemaining()) {
+        ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+      }
+    }
+    Counter counter = new Counter();
+    ByteBuffer result = strip(buffer.array(), 0, buffer.position(), counter);
+    if (result == null) {
+      buffer.flip();
+      result = buffer;
+    }
+    while (result.hasRemaining()) {
+      out.write(result);
+    }
+    return counter.count;
+  }
+
+  /**
+   * Returns the stripped bytes, or null if nothing matched.
+   */
+  private ByteBuffer strip(byte[] bytes, int offset, int count, Counter counter) {
+    Matcher matcher = threadMatcher.get();
+    matcher.reset(new ByteArrayCharSequence(bytes, offset, count));
+    try {
+      if (!matcher.find()) {
+        return null;
+      }
+      ByteSink result = new ByteSink(count);
+      int position = 0;
+      StringBuilder replacement = template.isLiteral() ? null : new StringBuilder();
+      do {
+        result.write(bytes, offset + position, matcher.start() - position);
+        if (replacement == null) {
+          result.write(template.literalBytes, 0, template.literalBytes.length);
+        } else {
+          replacement.setLength(0);
+          template.append(matcher, replacement);
+          result.write(replacement);
+        }
+        position = matcher.end();
+        counter.count++;
+      } while (matcher.find());
+      result.write(bytes, offset + position, count - position);
+      return ByteBuffer.wrap(result.bytes, 0, result.size);
+    } finally {
+      matcher.reset("");
+    }
+  }
+
+  private static class Counter {
+    int count;
+  }
+
+  /**
+   * A growable byte array, unsynchronized unlike {@link java.io.ByteArrayOutputStream}.
+   */
+  private static class ByteSink {
+    byte[] bytes;
+    int size;
+
+    ByteSink(int capacity) {
+      bytes = new byte[Math.max(16, capacity)];
+    }
+
+    void write(byte[] source, int offset, int count) {
+      require(count);
+      System.arraycopy(source, offset, bytes, size, count);
+      size += count;
+    }
+
+    void write(CharSequence chars) {
+      require(chars.length());
+      for (int i = 0; i < chars.length(); i++) {
+        char c = chars.charAt(i);
+        bytes[size++] = (byte) (c <= 0xff ? c : '?');
+      }
+    }
+
+    private void require(int count) {
+      if (size + count > bytes.length) {
+        byte[] larger = new byte[Math.max(bytes.length * 2, size + count)];
+        System.arraycopy(bytes, 0, larger, 0, size);
+        bytes = larger;
+      }
+    }
+  }
+
+  /**
+   * Bytes as {@code ISO-8859-1} characters.
+   */
+  private static class ByteArrayCharSequence implements CharSequence {
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+
+    ByteArrayCharSequence(byte[] bytes, int offset, int length) {
+      this.bytes = bytes;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    public int length() {
+      return length;
+    }
+
+    public char charAt(int index) {
+      if (index < 0 || index >= length) {
+        throw new IndexOutOfBoundsException("index " + index + " for length " + length);
+      }
+      return (char) (bytes[offset + index] & 0xff);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+      if (start < 0 || start > end || end > length) {
+        throw new IndexOutOfBoundsException(
+            "start " + start + ", end " + end + " for length " + length);
+      }
+      return new ByteArrayCharSequence(bytes, offset + start, end - start);
+    }
+
+    @Override public String toString() {
+      char[] chars = new char[length];
+      for (int i = 0; i < length; i++) {
+        chars[i] = (char) (bytes[offset + i] & 0xff);
+      }
+      return new String(chars);
+    }
+  }
+
+  /**
+   * A replacement, parsed once into literal text and group references.
+   */
+  private static class Template {
+    /** Strings for literal text, and Integers for groups. */
+    final List<Object> parts;
+    /** The replacement as bytes if it has no group references, otherwise null. */
+    final byte[] literalBytes;
+
+    Template(List<Object> parts) {
+      this.parts = parts;
+      StringBuilder literal = new StringBuilder();
+      for (Object part : parts) {
+        if (!(part instanceof String)) {
+          literal = null;
+          break;
+        }
+        literal.append((String) part);
+      }
+      if (literal != null) {
+        ByteSink sink = new ByteSink(literal.length());
+        sink.write(literal);
+        literalBytes = new byte[sink.size];
+        System.arraycopy(sink.bytes, 0, literalBytes, 0, sink.size);
+      } else {
+        literalBytes = null;
+      }
+    }
+
+    boolean isLiteral() {
+      return literalBytes != null;
+    }
+
+    static Template parse(String replacement, Pattern pattern) {
+      int groupCount = pattern.matcher("").groupCount();
+      Map<String, Integer> groupNames = null;
+      List<Object> parts = new ArrayList<Object>();
+      StringBuilder literal = new StringBuilder();
+      for (int i = 0; i < replacement.length(); i++) {
+        char c = replacement.charAt(i);
+        if (c == '\\') {
+          if (++i == replacement.length()) {
+            throw new IllegalArgumentException("character to be escaped is missing");
+          }
+          literal.append(replacement.charAt(i));
+        } else if (c != '$') {
+          literal.append(c);
+        } else {
+          if (++i == replacement.length()) {
+            throw new IllegalArgumentException("illegal group reference: group index is missing");
+          }
+          Object group;
+          if (replacement.charAt(i) == '{') {
+            int close = replacement.indexOf('}', i);
+            if (close == -1) {
+              throw new IllegalArgumentException("named capturing group is missing trailing '}'");
+            }
+            String name = replacement.substring(i + 1, close);
+            if (groupNames == null) {
+              groupNames = PatternSyntax.groupNames(pattern);
+            }
+            Integer named = groupNames.get(name);
+            if (named == null || named > groupCount) {
+              throw new IllegalArgumentException("no group with name {" + name + "}");
+            }
+            group = named;
+            i = close;
+          } else {
+            int number = replacement.charAt(i) - '0';
+            if (number < 0 || number > 9) {
+              throw new IllegalArgumentException("illegal group reference");
+            }
+            if (number > groupCount) {
+              throw new IllegalArgumentException("no group " + number);
+            }
+            // like appendReplacement, take more digits only while they name an existing group
+            while (i + 1 < replacement.length()) {
+              int digit = replacement.charAt(i + 1) - '0';
+              if (digit < 0 || digit > 9 || number * 10 + digit > groupCount) {
+                break;
+              }
+              number = number * 10 + digit;
+              i++;
+            }
+            group = number;
+          }
+          if (literal.length() > 0) {
+            parts.add(literal.toString());
+            literal.setLength(0);
+          }
+          parts.add(group);
+        }
+      }
+      if (literal.length() > 0) {
+        parts.add(literal.toString());
+      }
+      return new Template(parts);
+    }
+
+    void append(Matcher matcher, StringBuilder out) {
+      for (Object part : parts) {
+        if (part instanceof Integer) {
+          String group = matcher.group((Integer) part);
+          if (group != null) {
+            out.append(group);
+          }
+        } else {
+          out.append((String) part);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,335 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Adapts a {@code UTF-8} encoded text file as a character sequence. Characters outside of the
+ * basic multilingual plane are returned as surrogate pairs, and each byte that isn't part of a
+ * well-formed sequence decodes to {@code U+FFFD}.
+ *
+ * <p>Opening the file makes a single streaming pass to build a sparse index that records the byte
+ * offset of every 1024th character. {@link #charAt} decodes from the nearest checkpoint, or from
+ * wherever the calling thread last read, so random access stays close to constant time without
+ * decoding the whole file into memory. Sequential and backtracking access, as done by regular
+ * expressions, costs a single decode per character.
+ *
+ * <p>A sequence and all of its views may be read by multiple threads concurrently.
+ *
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+public final class Utf8FileCharSequence implements CharSequence {
+
+  static final int DEFAULT_CHECKPOINT_INTERVAL = 1024;
+
+  private final Index index;
+  private final long start;
+  private final long end;
+
+  Utf8FileCharSequence(ByteSource source, int checkpointInterval) throws IOException {
+    this.index = new Index(source, checkpointInterval);
+    this.start = 0;
+    this.end = index.charCount;
+  }
+
+  private Utf8FileCharSequence(Utf8FileCharSequence prototype, long start, long end) {
+    this.index = prototype.index;
+    this.start = start;
+    this.end = end;
+  }
+
+  /**
+   * Returns a character sequence backed by a read-only memory mapping of {@code file}.
+   */
+  public static Utf8FileCharSequence map(File file) throws IOException {
+    return new Utf8FileCharSequence(new MappedByteSource(file), DEFAULT_CHECKPOINT_INTERVAL);
+  }
+
+  /**
+   * Returns a character sequence that reads {@code file} in pages of {@code pageSize} bytes,
+   * keeping the {@code pageCount} most recently used pages in memory.
+   */
+  public static Utf8FileCharSequence paged(File file, int pageSize, int pageCount)
+      throws IOException {
+    return new Utf8FileCharSequence(
+        new PagedByteSource(new ChannelByteSource(file), pageSize, pageCount),
+        DEFAULT_CHECKPOINT_INTERVAL);
+  }
+
+  /**
+   * Returns the length of this sequence in chars.
+   *
+   * @throws IllegalStateException if this sequence is longer than {@link Integer#MAX_VALUE}.
+   */
+  public int length() {
+    long length = end - start;
+    if (length > Integer.MAX_VALUE) {
+      throw new IllegalStateException("length " + length + " exceeds Integer.MAX_VALUE");
+    }
+    return (int) length;
+  }
+
+  public long longLength() {
+    return end - start;
+  }
+
+  public char charAt(int index) {
+    return charAt((long) index);
+  }
+
+  public char charAt(long index) {
+    if (index < 0 || index >= end - start) {
+      throw new IndexOutOfBoundsException("index " + index + " for length " + (end - start));
+    }
+    try {
+      Cursor cursor = this.index.locate(start + index);
+      return this.index.charAt(cursor);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public Utf8FileCharSequence subSequence(int start, int end) {
+    return subSequence((long) start, (long) end);
+  }
+
+  public Utf8FileCharSequence subSequence(long start, long end) {
+    if (start < 0 || start > end || end > this.end - this.start) {
+      throw new IndexOutOfBoundsException(
+          "start " + start + ", end " + end + ", length " + (this.end - this.start));
+    }
+    return new Utf8FileCharSequence(this, this.start + start, this.start + end);
+  }
+
+  public void close() throws IOException {
+    index.source.close();
+  }
+
+  @Override
+  public String toString() {
+    if (start == end) {
+      return "";
+    }
+    StringBuilder result = new StringBuilder(length());
+    try {
+      Cursor cursor = index.locate(start);
+      result.append(index.charAt(cursor));
+      while (cursor.charIndex < end - 1) {
+        index.forward(cursor);
+        result.append(index.charAt(cursor));
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return result.toString();
+  }
+
+  /**
+   * The position of a char in the file. Surrogate pairs share a byte position, with {@code low}
+   * set for the second char of the pair.
+   */
+  private static final class Cursor {
+    long charIndex = -1;
+    long bytePosition;
+    boolean low;
+  }
+
+  /**
+   * Maps char indices to byte positions. Shared by a sequence and all of its views.
+   */
+  private static final class Index {
+
+    private final ByteSource source;
+    private final int interval;
+    private final long byteLength;
+
+    /**
+     * The byte position of the code point holding every {@code interval}th char, shifted left by
+     * one. The low bit is set if that char is the low half of a surrogate pair.
+     */
+    private long[] checkpoints;
+    private long charCount;
+
+    private final ThreadLocal<Cursor> cursors = new ThreadLocal<Cursor>() {
+      @Override protected Cursor initialValue() {
+        return new Cursor();
+      }
+    };
+
+    Index(ByteSource source, int interval) throws IOException {
+      if (interval < 1) {
+        throw new IllegalArgumentException("interval < 1: " + interval);
+      }
+      this.source = source;
+      this.interval = interval;
+      this.byteLength = source.length();
+
+      checkpoints = new long[(int) Math.min(byteLength / interval + 1, Integer.MAX_VALUE)];
+      int checkpointCount = 0;
+      long bytePosition = 0;
+      while (bytePosition < byteLength) {
+        int decoded = decode(bytePosition);
+        int charsInCodePoint = codePoint(decoded) >= 0x10000 ? 2 : 1;
+        for (int c = 0; c < charsInCodePoint; c++) {
+          if ((charCount + c) % interval == 0) {
+            if (checkpointCount == checkpoints.length) {
+              checkpoints = Arrays.copyOf(checkpoints, checkpointCount * 2);
+            }
+            checkpoints[checkpointCount++] = bytePosition << 1 | c;
+          }
+        }
+        charCount += charsInCodePoint;
+        bytePosition += encodedLength(decoded);
+      }
+      checkpoints = Arrays.copyOf(checkpoints, checkpointCount);
+    }
+
+    /**
+     * Returns the calling thread's cursor, moved to {@code charIndex}.
+     */
+    Cursor locate(long charIndex) throws IOException {
+      Cursor cursor = cursors.get();
+      long fromCheckpoint = charIndex % interval;
+      if (cursor.charIndex == -1 || Math.abs(charIndex - cursor.charIndex) > fromCheckpoint) {
+        long checkpoint = checkpoints[(int) (charIndex / interval)];
+        cursor.charIndex = charIndex - fromCheckpoint;
+        cursor.bytePosition = checkpoint >>> 1;
+        cursor.low = (checkpoint & 1) != 0;
+      }
+      while (cursor.charIndex < charIndex) {
+        forward(cursor);
+      }
+      while (cursor.charIndex > charIndex) {
+        backward(cursor);
+      }
+      return cursor;
+    }
+
+    char charAt(Cursor cursor) throws IOException {
+      int codePoint = codePoint(decode(cursor.bytePosition));
+      if (codePoint < 0x10000) {
+        return (char) codePoint;
+      } else if (cursor.low) {
+        return (char) (0xdc00 + (codePoint & 0x3ff));
+      } else {
+        return (char) (0xd800 + ((codePoint - 0x10000) >>> 10));
+      }
+    }
+
+    void forward(Cursor cursor) throws IOException {
+      int decoded = decode(cursor.bytePosition);
+      if (!cursor.low && codePoint(decoded) >= 0x10000) {
+        cursor.low = true;
+      } else {
+        cursor.low = false;
+        cursor.bytePosition += encodedLength(decoded);
+      }
+      cursor.charIndex++;
+    }
+
+    void backward(Cursor cursor) throws IOException {
+      if (cursor.low) {
+        cursor.low = false;
+      } else {
+        cursor.bytePosition = previousCodePoint(cursor.bytePosition);
+        cursor.low = codePoint(decode(cursor.bytePosition)) >= 0x10000;
+      }
+      cursor.charIndex--;
+    }
+
+    /**
+     * Returns the byte position of the code point before the one at {@code bytePosition}. The
+     * decoder only consumes continuation bytes after a lead byte, so every other byte starts a
+     * code point; a continuation byte that isn't claimed by the nearest lead byte is malformed and
+     * stands alone.
+     */
+    private long previousCodePoint(long bytePosition) throws IOException {
+      long lead = bytePosition - 1;
+      while (lead > bytePosition - 4 && lead > 0 && isContinuation(source.get(lead))) {
+        lead--;
+      }
+      return lead < bytePosition - 1 && encodedLength(decode(lead)) != bytePosition - lead
+          ? bytePosition - 1
+          : lead;
+    }
+
+    /**
+     * Decodes the code point at {@code bytePosition}, returning it in the low 24 bits and its
+     * encoded length in the high 8 bits.
+     */
+    private int decode(long bytePosition) throws IOException {
+      int b0 = source.get(bytePosition);
+      if (b0 < 0x80) {
+        return 1 << 24 | b0;
+      }
+
+      int length;
+      int codePoint;
+      int min2 = 0x80;
+      int max2 = 0xbf;
+      if (b0 >= 0xc2 && b0 <= 0xdf) {
+        length = 2;
+        codePoint = b0 & 0x1f;
+      } else if (b0 >= 0xe0 && b0 <= 0xef) {
+        length = 3;
+        codePoint = b0 & 0x0f;
+        if (b0 == 0xe0) {
+          min2 = 0xa0; // overlong
+        } else if (b0 == 0xed) {
+          max2 = 0x9f; // surrogate
+        }
+      } else if (b0 >= 0xf0 && b0 <= 0xf4) {
+        length = 4;
+        codePoint = b0 & 0x07;
+        if (b0 == 0xf0) {
+          min2 = 0x90; // overlong
+        } else if (b0 == 0xf4) {
+          max2 = 0x8f; // beyond U+10FFFF
+        }
+      } else {
+        return 1 << 24 | 0xfffd;
+      }
+
+      if (bytePosition + length > byteLength) {
+        return 1 << 24 | 0xfffd;
+      }
+      for (int i = 1; i < length; i++) {
+        int b = source.get(bytePosition + i);
+        if (i == 1 ? (b < min2 || b > max2) : !isContinuation(b)) {
+          return 1 << 24 | 0xfffd;
+        }
+        codePoint = codePoint << 6 | (b & 0x3f);
+      }
+      return length << 24 | codePoint;
+    }
+
+    private static boolean isContinuation(int b) {
+      return (b & 0xc0) == 0x80;
+    }
+
+    private static int codePoint(int decoded) {
+      return decoded & 0xffffff;
+    }
+
+    private static int encodedLength(int decoded) {
+      return decoded >>> 24;
+    }
+  }
+}
@@ -0,0 +1,360 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import junit.framework.TestCase;
+
+/**
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+public class FileCharSequenceTest extends TestCase {
+
+  private static final String TEXT
+      = "user=jesse password=hunter2\nuser=bob password=letmein\n\u00e9t\u00e9\n";
+
+  private File file;
+
+  @Override protected void setUp() throws Exception {
+    file = File.createTempFile("FileCharSequenceTest", ".txt");
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(TEXT.getBytes("ISO-8859-1"));
+    out.close();
+  }
+
+  @Override protected void tearDown() throws Exception {
+    file.delete();
+  }
+
+  public void testRandomAccess() throws IOException {
+    assertSequence(new FileCharSequence(file));
+  }
+
+  public void testMapped() throws IOException {
+    assertSequence(FileCharSequence.map(file));
+  }
+
+  public void testMappedAcrossSegments() throws IOException {
+    // 16 byte segments so that reads and matches straddle segment boundaries
+    assertSequence(new FileCharSequence(new MappedByteSource(file, 4)));
+  }
+
+  public void testPaged() throws IOException {
+    assertSequence(FileCharSequence.paged(file, 8, 2));
+  }
+
+  public void testReadAhead() throws IOException {
+    assertSequence(FileCharSequence.readAhead(file, 8));
+    assertSequence(FileCharSequence.readAhead(file, 1024));
+  }
+
+  public void testReadAheadWaits() throws IOException {
+    byte[] bytes = new byte[64 * 1024];
+    new Random(0).nextBytes(bytes);
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(bytes);
+    out.close();
+
+    FileCharSequence sequence = FileCharSequence.readAhead(file, 1024);
+    for (int i = 0; i < bytes.length; i++) {
+      assertEquals((char) (bytes[i] & 0xff), sequence.charAt(i));
+    }
+    long sequentialWaits = sequence.readAheadWaitCount();
+    assertTrue(sequentialWaits >= 1);
+
+    // backtracking into the previous block doesn't wait; jumping elsewhere does
+    sequence.charAt(bytes.length - 1025);
+    assertEquals(sequentialWaits, sequence.readAheadWaitCount());
+    assertEquals((char) (bytes[100] & 0xff), sequence.charAt(100));
+    assertEquals(sequentialWaits + 1, sequence.readAheadWaitCount());
+    sequence.close();
+  }
+
+  public void testReadAheadReleasesBlocksOnClose() throws Exception {
+    final ReadAheadByteSource source = new ReadAheadByteSource(file, 16);
+    source.get(0);
+    source.get(16);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.submit(new Callable<Integer>() {
+      public Integer call() throws IOException {
+        return source.get(32);
+      }
+    }).get();
+    executor.shutdown();
+    assertTrue(source.blockBytes() >= 16 * 4);
+
+    source.close();
+    assertEquals(0, source.blockBytes());
+    try {
+      source.get(0);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testReadAheadDropsCursorsOfDeadThreads() throws Exception {
+    final ReadAheadByteSource source = new ReadAheadByteSource(file, 16);
+    source.get(0);
+    for (int i = 0; i < 3; i++) {
+      Thread thread = new Thread() {
+        @Override public void run() {
+          try {
+            source.get(40);
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      thread.start();
+      thread.join();
+    }
+    // each new thread drops the cursors of the threads that died before it, keeping their waits;
+    // what's left is this thread's block and its read-ahead, and the last thread's block
+    assertEquals(4, source.waitCount());
+    assertEquals(16 * 3, source.blockBytes());
+    source.close();
+  }
+
+  public void testPageCacheCounters() throws IOException {
+    FileCharSequence sequence = FileCharSequence.paged(file, 16, 2);
+    sequence.charAt(0);
+    sequence.charAt(1);
+    assertEquals(1, sequence.cacheMissCount());
+    assertEquals(1, sequence.cacheHitCount());
+
+    sequence.charAt(20);
+    sequence.charAt(2);
+    assertEquals(2, sequence.cacheMissCount());
+    assertEquals(2, sequence.cacheHitCount());
+
+    // page 0 is evicted by pages 2 and 3
+    sequence.charAt(40);
+    sequence.charAt(50);
+    sequence.charAt(3);
+    assertEquals(5, sequence.cacheMissCount());
+    sequence.close();
+  }
+
+  public void testPageCacheDropsCachesOfDeadThreads() throws Exception {
+    final PagedByteSource source = new PagedByteSource(new ChannelByteSource(file), 16, 2);
+    source.get(0);
+    for (int i = 0; i < 3; i++) {
+      Thread thread = new Thread() {
+        @Override public void run() {
+          try {
+            source.get(20);
+            source.get(21);
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      thread.start();
+      thread.join();
+    }
+    // each new thread drops the caches of the threads that died before it
+    assertEquals(2, source.cacheCount());
+    assertEquals(4, source.missCount());
+    assertEquals(3, source.hitCount());
+    source.close();
+  }
+
+  public void testConcurrentMatching() throws Exception {
+    assertConcurrentMatching(new FileCharSequence(file));
+    assertConcurrentMatching(FileCharSequence.map(file));
+    assertConcurrentMatching(FileCharSequence.paged(file, 8, 2));
+    assertConcurrentMatching(FileCharSequence.readAhead(file, 8));
+  }
+
+  private void assertConcurrentMatching(final FileCharSequence sequence) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<String>> results = new ArrayList<Future<String>>();
+    for (int i = 0; i < 400; i++) {
+      final FileCharSequence view = i % 2 == 0
+          ? sequence.subSequence(0, 28)
+          : sequence.subSequence(28, 54);
+      results.add(executor.submit(new Callable<String>() {
+        public String call() {
+          Matcher matcher = Pattern.compile("password=(\\S+)").matcher(view);
+          return matcher.find() ? matcher.group(1) : null;
+        }
+      }));
+    }
+    for (int i = 0; i < results.size(); i++) {
+      assertEquals(i % 2 == 0 ? "hunter2" : "letmein", results.get(i).get());
+    }
+    executor.shutdown();
+    sequence.close();
+  }
+
+  public void testLineAndColumnNumbers() throws IOException {
+    FileCharSequence sequence = new FileCharSequence(file);
+    assertEquals(2, sequence.lineNumber(33));
+    assertEquals(6, sequence.columnNumber(33));
+    assertEquals(1, sequence.lineNumber(0));
+    assertEquals(1, sequence.columnNumber(0));
+    assertEquals(1, sequence.lineNumber(27));
+    assertEquals(28, sequence.columnNumber(27));
+    assertEquals(3, sequence.lineNumber(54));
+    assertEquals(4, sequence.lineNumber(TEXT.length()));
+    assertEquals(1, sequence.columnNumber(TEXT.length()));
+
+    // views count lines from the start of the file
+    FileCharSequence bob = sequence.subSequence(28, 54);
+    assertEquals(2, bob.lineNumber(5));
+    assertEquals(6, bob.columnNumber(5));
+    sequence.close();
+  }
+
+  public void testGzip() throws IOException {
+    assertGzip(1024);
+    assertGzip(64 * 1024);
+  }
+
+  public void testGzipDropsCursorsOfDeadThreads() throws Exception {
+    File gzip = File.createTempFile("FileCharSequenceTest", ".gz");
+    File index = new File(gzip.getPath() + ".idx");
+    try {
+      OutputStream out = new FileOutputStream(gzip);
+      byte[] text = TEXT.getBytes("ISO-8859-1");
+      writeGzipMember(out, text, 0, text.length, Deflater.DEFAULT_COMPRESSION);
+      out.close();
+
+      final GzipByteSource source = new GzipByteSource(gzip, 16);
+      assertEquals('u', source.get(0));
+      for (int i = 0; i < 3; i++) {
+        Thread thread = new Thread() {
+          @Override public void run() {
+            try {
+              assertEquals('j', source.get(5));
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        };
+        thread.start();
+        thread.join();
+      }
+      // each new thread ends the inflaters of the threads that died before it
+      assertEquals(2, source.cursorCount());
+      assertEquals('p', source.get(11));
+      source.close();
+    } finally {
+      gzip.delete();
+      index.delete();
+    }
+  }
+
+  private void assertGzip(int checkpointInterval) throws IOException {
+    byte[] text = new byte[300000];
+    Random random = new Random(checkpointInterval);
+    for (int i = 0; i < text.length; i++) {
+      // compressible, so that back references reach across checkpoints
+      text[i] = (byte) (random.nextInt(8) == 0 ? random.nextInt(256) : TEXT.charAt(i % 54));
+    }
+    File gzip = File.createTempFile("FileCharSequenceTest", ".gz");
+    File index = new File(gzip.getPath() + ".idx");
+    try {
+      // two members, the first of stored blocks, so reads cross from one to the next
+      OutputStream out = new FileOutputStream(gzip);
+      writeGzipMember(out, text, 0, 100000, Deflater.NO_COMPRESSION);
+      writeGzipMember(out, text, 100000, 200000, Deflater.DEFAULT_COMPRESSION);
+      out.close();
+
+      // the second pass loads the index saved by the first
+      for (int pass = 0; pass < 2; pass++) {
+        FileCharSequence sequence = FileCharSequence.gzip(gzip, checkpointInterval);
+        assertTrue(index.exists());
+        assertEquals(text.length, sequence.longLength());
+        for (int i = 0; i < 2000; i++) {
+          int position = random.nextInt(text.length);
+          assertEquals((char) (text[position] & 0xff), sequence.charAt(position));
+        }
+        assertEquals(new String(text, "ISO-8859-1"), sequence.toString());
+        sequence.close();
+      }
+    } finally {
+      gzip.delete();
+      index.delete();
+    }
+  }
+
+  private void writeGzipMember(OutputStream out, byte[] bytes, int offset, int count,
+      final int level) throws IOException {
+    GZIPOutputStream gzipOut = new GZIPOutputStream(out) {
+      {
+        def.setLevel(level);
+      }
+      @Override public void close() throws IOException {
+        finish();
+      }
+    };
+    gzipOut.write(bytes, offset, count);
+    gzipOut.close();
+  }
+
+  public void testMappedEmptyFile() throws IOException {
+    new FileOutputStream(file).close();
+    FileCharSequence sequence = FileCharSequence.map(file);
+    assertEquals(0, sequence.length());
+    assertEquals("", sequence.toString());
+    sequence.close();
+  }
+
+  private void assertSequence(FileCharSequence sequence) throws IOException {
+    assertEquals(TEXT.length(), sequence.length());
+    assertEquals(TEXT.length(), sequence.longLength());
+    for (int i = 0; i < TEXT.length(); i++) {
+      assertEquals(TEXT.charAt(i), sequence.charAt(i));
+    }
+    assertEquals(TEXT, sequence.toString());
+
+    FileCharSequence bob = sequence.subSequence(28, 54);
+    assertEquals(TEXT.substring(28, 54), bob.toString());
+    assertEquals(TEXT.substring(33, 36), bob.subSequence(5L, 8L).toString());
+    assertEquals('b', bob.charAt(5L));
+
+    try {
+      bob.charAt(26);
+      fail();
+    } catch (IndexOutOfBoundsException expected) {
+    }
+
+    Matcher matcher = Pattern.compile("password=(\\S+)").matcher(sequence);
+    assertTrue(matcher.find());
+    assertEquals("hunter2", matcher.group(1));
+    assertTrue(matcher.find());
+    assertEquals("letmein", matcher.group(1));
+    assertFalse(matcher.find());
+
+    sequence.close();
+  }
+}
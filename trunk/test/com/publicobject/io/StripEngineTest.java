@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+
+/**
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+public class StripEngineTest extends TestCase {
+
+  private static final String TEXT
+      = "user=jesse password=hunter2\nuser=bob password=letmein\n\u00e9t\u00e9\n";
+
+  public void testStripString() {
+    StripEngine engine = new StripEngine(Pattern.compile("password=\\S+"));
+    assertEquals("user=jesse \nuser=bob \n\u00e9t\u00e9\n", engine.strip(TEXT));
+    String clean = "nothing to see";
+    assertSame(clean, engine.strip(clean));
+  }
+
+  public void testReplacement() {
+    StripEngine engine = new StripEngine(
+        Pattern.compile("(?<key>password)=(\\S)\\S*"), "${key}=$2\\$$20");
+    assertEquals("user=jesse password=h$h0\nuser=bob password=l$l0\n\u00e9t\u00e9\n",
+        engine.strip(TEXT));
+
+    try {
+      new StripEngine(Pattern.compile("(a)"), "$2");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new StripEngine(Pattern.compile("(a)"), "${b}");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new StripEngine(Pattern.compile("\\(?<x>\\)"), "${x}");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new StripEngine(Pattern.compile("[(?<x>)]\\Q(?<y>)\\E"), "${x}");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals("[ab]", new StripEngine(Pattern.compile("\\[(?<x>a)]"), "[${x}b]").strip("[a]"));
+  }
+
+  public void testReplacementSkipsComments() {
+    try {
+      new StripEngine(Pattern.compile("(?x) # (?<y>z)\n (?<x>a)"), "${y}");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new StripEngine(Pattern.compile("# (?<y>z)\n (?<x>a)", Pattern.COMMENTS), "${y}");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals("<a>", new StripEngine(
+        Pattern.compile("(?x) # (?<y>z)\n (?<x>a)"), "<${x}>").strip("a"));
+    assertEquals("<b>", new StripEngine(
+        Pattern.compile("[](]a(?-x: # )(?<x>b)", Pattern.COMMENTS), "<${x}>").strip("]a # b"));
+  }
+
+  public void testPatternSet() {
+    StripEngine engine = StripEngine.compile(Arrays.asList("hunter\\d", "letmein", "\u00e9"));
+    assertEquals("user=jesse password=\nuser=bob password=\nt\n", engine.strip(TEXT));
+  }
+
+  public void testPatternSetBackreferences() {
+    StripEngine engine = StripEngine.compile(Arrays.asList("(x)y", "(a)\\1"));
+    assertEquals(" ", engine.strip("aa xy"));
+    assertEquals("ax", engine.strip("ax"));
+
+    engine = StripEngine.compile(Arrays.asList("(x)\\1", "(b)\\1\\Q\\1\\E"));
+    assertEquals("1\\1", engine.strip("xx1bb\\1\\1"));
+
+    // a comment or quote that runs to the end of a regex ends there
+    engine = StripEngine.compile(Arrays.asList("(?x) (a) \\1 # [(b)\\1", "\\Qb(", "(c)\\1"));
+    assertEquals(" bb  b) ", engine.strip("aa bb b( b) cc"));
+  }
+
+  public void testStripByteBuffer() throws Exception {
+    StripEngine engine = new StripEngine(Pattern.compile("password=\\S+"), "\u00e9\u2603");
+    String expected = "user=jesse \u00e9?\nuser=bob \u00e9?\n\u00e9t\u00e9\n";
+    byte[] bytes = ("xx" + TEXT).getBytes("ISO-8859-1");
+
+    ByteBuffer heap = ByteBuffer.wrap(bytes);
+    heap.position(2);
+    assertEquals(expected, string(engine.strip(heap)));
+    assertFalse(heap.hasRemaining());
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes, 2, bytes.length - 2).flip();
+    assertEquals(expected, string(engine.strip(direct)));
+
+    ByteBuffer clean = ByteBuffer.wrap("clean".getBytes("ISO-8859-1"));
+    assertEquals("clean", string(engine.strip(clean)));
+  }
+
+  public void testStripChannel() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      text.append(TEXT);
+    }
+    StripEngine engine = new StripEngine(Pattern.compile("password=\\S+"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int count = engine.strip(
+        Channels.newChannel(new ByteArrayInputStream(text.toString().getBytes("ISO-8859-1"))),
+        Channels.newChannel(out));
+    assertEquals(2000, count);
+    assertEquals(engine.strip(text), out.toString("ISO-8859-1"));
+  }
+
+  public void testConcurrentStripping() throws Exception {
+    final StripEngine engine = new StripEngine(Pattern.compile("password=(\\S+)"), "$1");
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<String>> results = new ArrayList<Future<String>>();
+    for (int i = 0; i < 400; i++) {
+      final String input = "password=" + i;
+      results.add(executor.submit(new Callable<String>() {
+        public String call() {
+          return engine.strip(input);
+        }
+      }));
+    }
+    for (int i = 0; i < results.size(); i++) {
+      assertEquals(Integer.toString(i), results.get(i).get());
+    }
+    executor.shutdown();
+  }
+
+  private String string(ByteBuffer buffer) throws Exception {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return new String(bytes, "ISO-8859-1");
+  }
+}
@@ -0,0 +1,905 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+
+/**
+ * Runs the Strip script's {@code main} against files in a temporary directory. Strip is in the
+ * default package, so this test is too.
+ *
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+public class StripTest extends TestCase {
+
+  /** Patterns that span lines, look around and anchor, which chunk boundaries can break. */
+  private static final String[] PATTERNS = {
+      "password=\\S+",
+      "\\b\\w+@\\w+\\.com\\b",
+      "(?m)^took.*$",
+      "(?<=user=)u\\d+",
+      "(?s)BEGIN.*?END\\n",
+  };
+
+  private File directory;
+  private PrintStream systemOut;
+  private ByteArrayOutputStream out;
+
+  @Override protected void setUp() throws Exception {
+    directory = Files.createTempDirectory("StripTest").toFile();
+    systemOut = System.out;
+    out = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(out, true, "UTF-8"));
+  }
+
+  @Override protected void tearDown() throws Exception {
+    System.setOut(systemOut);
+    delete(directory);
+  }
+
+  public void testClobberThroughSymlink() throws Exception {
+    File real = write("real.txt", "keep SECRET here\n");
+    Path link = Files.createSymbolicLink(new File(directory, "link.txt").toPath(),
+        Paths.get("real.txt"));
+    File subdirectory = new File(directory, "sub");
+    assertTrue(subdirectory.mkdir());
+    Path linkInSubdirectory = Files.createSymbolicLink(new File(subdirectory, "link.txt").toPath(),
+        Paths.get("../real.txt"));
+
+    strip("-c", "SECRET", link.toString());
+    assertTrue(Files.isSymbolicLink(link));
+    assertEquals("keep  here\n", read(real));
+
+    write("real.txt", "SECRET again\n");
+    strip("-c", "SECRET", linkInSubdirectory.toString());
+    assertTrue(Files.isSymbolicLink(linkInSubdirectory));
+    assertEquals(" again\n", read(real));
+    assertEquals(1, subdirectory.list().length);
+  }
+
+  public void testClobberInDirectoryThatIsNotWritable() throws Exception {
+    File clean = write("readonly/clean.txt", "nothing to see\n");
+    File dirty = write("readonly/dirty.txt", "keep SECRET here\n");
+    long modified = System.currentTimeMillis() - 60 * 1000;
+    assertTrue(clean.setLastModified(modified));
+    File index = write("readonly/index", "");
+    File readOnly = clean.getParentFile();
+    assertTrue(readOnly.setWritable(false));
+    try {
+      if (readOnly.canWrite()) {
+        return; // running as root, which can write to any directory
+      }
+      // neither the stripped file nor the index can be renamed into place, so both are copied
+      strip("-c", "--index", index.getPath(), "SECRET", clean.getPath(), dirty.getPath());
+      assertEquals("keep  here\n", read(dirty));
+      assertTrue(read(index), read(index).contains(clean.getAbsolutePath()));
+      assertEquals(3, readOnly.list().length);
+      String output = strip("-c", "--index", index.getPath(), "SECRET", clean.getPath());
+      assertTrue(output, output.contains("Skipped 1 files"));
+    } finally {
+      readOnly.setWritable(true);
+    }
+  }
+
+  public void testSmallFileWithMatches() throws Exception {
+    String input = corpus(Strip.SMALL_FILE_SIZE / 2);
+    File file = write("small.txt", input);
+    long modified = System.currentTimeMillis() - 60 * 1000;
+    assertTrue(file.setLastModified(modified));
+    strip("-c", "password=\\S+", file.getPath());
+    assertEquals(input.replaceAll("password=\\S+", ""), read(file));
+    assertTrue(file.lastModified() != modified);
+
+    // replacements that grow the file past the buffer fall back to a temporary file
+    write("small.txt", input);
+    String replacement = "$0$0$0$0$0$0$0$0$0$0";
+    strip("-c", "-r", replacement, "\\w+", file.getPath());
+    assertEquals(input.replaceAll("\\w+", replacement), read(file));
+  }
+
+  public void testSmallFileWithoutMatchesIsNotWritten() throws Exception {
+    String input = corpus(Strip.SMALL_FILE_SIZE / 2);
+    File file = write("small.txt", input);
+    long modified = System.currentTimeMillis() - 60 * 1000;
+    assertTrue(file.setLastModified(modified));
+    String output = strip("-c", "NOT IN THE CORPUS", file.getPath());
+    assertTrue(output, output.contains("No occurrences in " + file));
+    assertEquals(input, read(file));
+    assertEquals(modified, file.lastModified());
+  }
+
+  public void testLargeSpansAreTransferred() throws Exception {
+    // spans longer than the output's buffer go through transferTo, shorter ones are buffered
+    StringBuilder filler = new StringBuilder();
+    Random random = new Random(0);
+    while (filler.length() < Strip.SMALL_FILE_SIZE) {
+      filler.append((char) (random.nextInt(0x100 - 0x20) + 0x20));
+    }
+    String input = "SECRET" + filler + "SECRET a SECRET b SECRET" + filler + "SECRET";
+    assertTrue(input.length() > Strip.SMALL_FILE_SIZE);
+    assertStripsLikeReplaceAll(input, "SECRET");
+    assertStripsLikeReplaceAll(input, "SECRET", "--chunk-size", "64k", "--jobs", "2");
+    assertStripsLikeReplaceAll(input, "SECRET", "--max-match", "100", "--window-size", "100k");
+  }
+
+  public void testBufferPoolBoundsDirectBuffers() {
+    Strip.BufferPool pool = new Strip.BufferPool(1024, 2);
+    ByteBuffer a = pool.take();
+    ByteBuffer b = pool.take();
+    ByteBuffer c = pool.take();
+    assertTrue(a.isDirect());
+    assertTrue(b.isDirect());
+    assertFalse(c.isDirect());
+    assertEquals(1024, c.capacity());
+    a.put((byte) 1);
+    pool.give(c);
+    pool.give(a);
+    assertSame(a, pool.take());
+    assertEquals(0, a.position());
+    assertFalse(pool.take().isDirect());
+  }
+
+  public void testChunkedStrippingMatchesSequential() throws Exception {
+    for (int size : new int[] { 20 * 1024, 300 * 1024 }) {
+      String input = corpus(size);
+      for (String regex : PATTERNS) {
+        assertStripsLikeReplaceAll(input, regex);
+        assertStripsLikeReplaceAll(input, regex, "--chunk-size", "1k", "--jobs", "3");
+        assertStripsLikeReplaceAll(input, regex, "--chunk-size", "4099", "--jobs", "1");
+      }
+    }
+  }
+
+  public void testJobsReportInOrder() throws Exception {
+    List<String> args = new ArrayList<String>(Arrays.asList("-c", "--jobs", "4", "password=\\S+"));
+    List<String> inputs = new ArrayList<String>();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 20; i++) {
+      // sizes vary so that files finish out of order
+      String input = corpus((i % 5) * 50 * 1024 + 1024 + i);
+      String path = write("input" + i + ".txt", input).getPath();
+      args.add(path);
+      inputs.add(input);
+      int matches = input.split("password=\\S+", -1).length - 1;
+      expected.append(matches > 0 ? "Stripped " + matches + " from " : "No occurrences in ")
+          .append(path).append('\n');
+    }
+    String output = strip(args.toArray(new String[args.size()]));
+    assertTrue(output, output.startsWith(expected.toString()));
+    for (int i = 0; i < inputs.size(); i++) {
+      assertEquals(inputs.get(i).replaceAll("password=\\S+", ""),
+          read(new File(directory, "input" + i + ".txt")));
+    }
+  }
+
+  public void testStdinMatchesSequential() throws Exception {
+    String input = corpus(300 * 1024);
+    for (String regex : PATTERNS) {
+      String expected = input.replaceAll(regex, "");
+      assertEquals(regex, expected, stripInChildProcess(input, regex));
+      assertEquals(regex, expected, stripInChildProcess(input, "--max-match", "200", regex));
+    }
+  }
+
+  public void testWindowedStrippingMatchesSequential() throws Exception {
+    String input = corpus(300 * 1024);
+    for (String regex : PATTERNS) {
+      assertStripsLikeReplaceAll(input, regex, "--max-match", "200", "--window-size", "1000");
+      assertStripsLikeReplaceAll(input, regex, "--max-match", "300", "--window-size", "4k",
+          "--chunk-size", "1k", "--jobs", "2");
+    }
+  }
+
+  public void testPatterns() throws Exception {
+    // literals and regexes that start together, so each order has different winners
+    List<String> lines = Arrays.asList("password=\\S+", "pass", "password", "user=u1",
+        "user=u1\\d", "\\b\\w+@\\w+\\.com\\b", "took \\d+ms", "took", "\\Qat line 1\\E");
+    List<String> reversed = new ArrayList<String>(lines);
+    Collections.reverse(reversed);
+    String input = corpus(300 * 1024);
+    for (List<String> patterns : Arrays.asList(lines, reversed)) {
+      StringBuilder file = new StringBuilder("# patterns, one per line\n\n");
+      StringBuilder alternation = new StringBuilder();
+      for (String pattern : patterns) {
+        file.append(pattern).append('\n');
+        alternation.append(alternation.length() == 0 ? "(?:" : "|(?:").append(pattern).append(')');
+      }
+      String patternsFile = write("patterns.txt", file.toString()).getPath();
+      String expected = input.replaceAll(alternation.toString(), "");
+      assertStrips(expected, input, "--patterns", patternsFile);
+      assertStrips(expected, input, "--patterns", patternsFile, "--chunk-size", "1k");
+      assertStrips(expected, input, "--patterns", patternsFile,
+          "--max-match", "200", "--window-size", "1k");
+    }
+  }
+
+  public void testPatternsRenumberBackreferences() throws Exception {
+    String patternsFile = write("patterns.txt", "(x)y\n(a)\\1\n(?<b>b)\\k<b>\n").getPath();
+    assertStrips("  ab  ba", "aa xy ab bb ba", "--patterns", patternsFile);
+
+    // a comment or quote that runs to the end of a pattern ends there
+    patternsFile = write("patterns.txt", "(?x) (a) \\1 # (b)\\1\n\\Qb(\n(c)\\1\n").getPath();
+    assertStrips(" bb  b) ", "aa bb b( b) cc", "--patterns", patternsFile);
+  }
+
+  public void testWalkDirectories() throws Exception {
+    File a = write("tree/a.java", "SECRET a\n");
+    File b = write("tree/b.txt", "SECRET b\n");
+    File c = write("tree/sub/c.java", "SECRET c\n");
+    File d = write("tree/sub/generated/d.java", "SECRET d\n");
+    File e = write("tree/.git/e.java", "SECRET e\n");
+    File f = write("tree/f.txt", "SECRET f\n");
+    File binary = write("tree/binary.java", "SECRET\u0000\n");
+    File outside = write("outside/g.java", "SECRET g\n");
+    Files.createSymbolicLink(new File(directory, "tree/linked").toPath(), Paths.get("../outside"));
+    File tree = new File(directory, "tree");
+
+    // files named on the command line are stripped whatever the globs say
+    strip("-c", "--include", "*.java", "--exclude", "sub/generated", "SECRET",
+        tree.getPath(), b.getPath());
+    assertEquals(" a\n", read(a));
+    assertEquals(" b\n", read(b));
+    assertEquals(" c\n", read(c));
+    assertEquals("SECRET d\n", read(d));
+    assertEquals("SECRET e\n", read(e));
+    assertEquals("SECRET f\n", read(f));
+    assertEquals("SECRET\u0000\n", read(binary));
+    assertEquals("SECRET g\n", read(outside));
+
+    strip("-c", "--exclude", "*.java", "SECRET", tree.getPath());
+    assertEquals(" f\n", read(f));
+    assertEquals("SECRET d\n", read(d));
+  }
+
+  public void testIndexSkipsCleanFiles() throws Exception {
+    File clean = write("clean.txt", "nothing to see\n");
+    File dirty = write("dirty.txt", "password=hunter2\n");
+    long modified = System.currentTimeMillis() - 60 * 1000;
+    assertTrue(clean.setLastModified(modified));
+    assertTrue(dirty.setLastModified(modified));
+    String index = new File(directory, "index").getPath();
+
+    String output = strip("-c", "--index", index, "password=\\S+",
+        clean.getPath(), dirty.getPath());
+    assertTrue(output, output.contains("Skipped 0 files"));
+    assertEquals("\n", read(dirty));
+
+    // the dirty file had matches, so it's read again; after that it's clean too
+    output = strip("-c", "--index", index, "password=\\S+", clean.getPath(), dirty.getPath());
+    assertTrue(output, output.contains("Skipped 1 files"));
+    output = strip("-c", "--index", index, "password=\\S+", clean.getPath(), dirty.getPath());
+    assertTrue(output, output.contains("Skipped 2 files"));
+
+    // other patterns don't use this index
+    output = strip("-c", "--index", index, "see", clean.getPath(), dirty.getPath());
+    assertTrue(output, output.contains("Skipped 0 files"));
+    assertEquals("nothing to \n", read(clean));
+  }
+
+  public void testIndexNoticesChanges() throws Exception {
+    File file = write("file.txt", "nothing to see\n");
+    long modified = System.currentTimeMillis() - 60 * 1000;
+    assertTrue(file.setLastModified(modified));
+    String index = new File(directory, "index").getPath();
+    strip("-c", "--index", index, "password=\\S+", file.getPath());
+
+    // the same size but a different time
+    write("file.txt", "password=abcde\n");
+    assertTrue(file.setLastModified(modified + 1000));
+    String output = strip("-c", "--index", index, "password=\\S+", file.getPath());
+    assertTrue(output, output.contains("Skipped 0 files"));
+    assertEquals("\n", read(file));
+  }
+
+  public void testIndexHashesFilesWrittenTooRecentlyToTrust() throws Exception {
+    File file = write("file.txt", "nothing to see\n");
+    long modified = file.lastModified();
+    String index = new File(directory, "index").getPath();
+    strip("-c", "--index", index, "password=\\S+", file.getPath());
+
+    // a second write in the same tick leaves the size and the time unchanged
+    write("file.txt", "password=abcde\n");
+    assertTrue(file.setLastModified(modified));
+    String output = strip("-c", "--index", index, "password=\\S+", file.getPath());
+    assertTrue(output, output.contains("Skipped 0 files"));
+    assertEquals("\n", read(file));
+  }
+
+  public void testList() throws Exception {
+    String input = corpus(300 * 1024);
+    String path = write("input.txt", input).getPath();
+    for (String regex : new String[] { PATTERNS[0], PATTERNS[4] }) {
+      StringBuilder expected = new StringBuilder();
+      Matcher matcher = Pattern.compile(regex).matcher(input);
+      int line = 1;
+      int lineStart = 0;
+      int position = 0;
+      while (matcher.find()) {
+        for (; position < matcher.start(); position++) {
+          if (input.charAt(position) == '\n') {
+            line++;
+            lineStart = position + 1;
+          }
+        }
+        expected.append(path).append(':').append(line).append(':')
+            .append(matcher.start() - lineStart + 1).append(':').append(matcher.group())
+            .append('\n');
+      }
+      assertEquals(regex, expected.toString(), stripInChildProcess("", "--list", regex, path));
+      assertEquals(regex, expected.toString(),
+          stripInChildProcess("", "--list", "--chunk-size", "1k", regex, path));
+      assertEquals(regex, expected.toString(),
+          stripInChildProcess("", "--list", "--max-match", "200", "--window-size", "1k",
+              regex, path));
+    }
+    assertEquals(input, read(new File(path)));
+  }
+
+  public void testMatchLongerThanMaxMatchFails() throws Exception {
+    String input = corpus(20 * 1024);
+    File file = write("input.txt", input);
+    for (String[] flags : new String[][] {
+        { "--max-match", "200", "--window-size", "1000" },
+        { "--max-match", "200", "--chunk-size", "1k" } }) {
+      List<String> args = new ArrayList<String>(Arrays.asList(flags));
+      args.addAll(Arrays.asList("-c", "(?s)BEGIN.*END", file.getPath()));
+      try {
+        strip(args.toArray(new String[args.size()]));
+        fail(Arrays.toString(flags));
+      } catch (IOException expected) {
+        assertTrue(expected.getMessage(), expected.getMessage().contains("--max-match 200"));
+      }
+      assertEquals(input, read(file));
+    }
+  }
+
+  public void testAwaitKeepsInterrupt() throws Exception {
+    FutureTask<String> never = new FutureTask<String>(new Callable<String>() {
+      public String call() {
+        return "never run";
+      }
+    });
+    Thread.currentThread().interrupt();
+    try {
+      Strip.await(never);
+      fail();
+    } catch (InterruptedIOException expected) {
+    }
+    assertTrue(Thread.interrupted());
+
+    FutureTask<String> failed = new FutureTask<String>(new Callable<String>() {
+      public String call() throws IOException {
+        throw new FileNotFoundException("missing");
+      }
+    });
+    failed.run();
+    try {
+      Strip.await(failed);
+      fail();
+    } catch (FileNotFoundException expected) {
+    }
+  }
+
+  public void testInterruptStopsStripping() throws Exception {
+    File file = write("file.txt", "keep SECRET here\n");
+    for (String jobs : new String[] { "1", "2" }) {
+      Thread.currentThread().interrupt();
+      try {
+        strip("-c", "--jobs", jobs, "SECRET", file.getPath());
+        fail();
+      } catch (InterruptedIOException expected) {
+      }
+      assertTrue(Thread.interrupted());
+      assertEquals("keep SECRET here\n", read(file));
+    }
+  }
+
+  public void testParseSize() {
+    assertEquals(65536, Strip.parseSize("65536"));
+    assertEquals(64 * 1024, Strip.parseSize("64k"));
+    assertEquals(512 * 1024 * 1024, Strip.parseSize("512M"));
+    assertEquals(3L * 1024 * 1024 * 1024, Strip.parseSize("3g"));
+  }
+
+  public void testPrefilter() throws Exception {
+    assertEquals("password=@0", prefilter("password=\\S+"));
+    assertEquals("ms@-1", prefilter("\\d+ms"));
+    assertEquals("-abc@2", prefilter("\\d{2}-abc"));
+    assertEquals("xxxyz@0", prefilter("x{3}yz"));
+    assertEquals("a@0", prefilter("ab?cd"));
+    assertEquals("a.b\n@0", prefilter("a\\.b\\n"));
+    assertEquals("a.b@0", prefilter("\\Qa.b\\E+c"));
+    assertEquals("(a|b)@0", prefilter("\\Q(a|b)\\E"));
+    assertEquals("a|b@0", prefilter("a|b", Pattern.LITERAL));
+
+    // a ']' first in a class is a literal
+    assertEquals("bc@1", prefilter("[]a]bc"));
+    assertEquals("xyz@1", prefilter("[^]a]xyz"));
+    assertEquals("c@1", prefilter("[a[]b]]c"));
+    assertEquals("x@1", prefilter("[\\Q]\\E]x"));
+    assertEquals("b@2", prefilter("[a-z&&[^x]]\\pLb"));
+
+    assertNull(prefilter("abc|def"));
+    assertNull(prefilter("(?i)abc"));
+    assertNull(prefilter("\\x41bc"));
+    assertNull(prefilter("[\\c]]x"));
+    assertNull(prefilter("\\d+"));
+    assertNull(prefilter("abc", Pattern.CASE_INSENSITIVE));
+
+    assertStripsLikeReplaceAll("x ]bc y abc z\n", "[]a]bc");
+    assertStripsLikeReplaceAll("x ]xyz y axyz z bxyz\n", "[^]a]xyz");
+  }
+
+  /**
+   * Returns the literal that {@code regex}'s prefilter searches for and its offset, or null if
+   * it has no prefilter.
+   */
+  private String prefilter(String regex) throws Exception {
+    return prefilter(regex, 0);
+  }
+
+  private String prefilter(String regex, int flags) throws Exception {
+    Strip.Prefilter prefilter = Strip.Prefilter.of(Pattern.compile(regex, flags));
+    return prefilter != null
+        ? new String(prefilter.literal, "ISO-8859-1") + "@" + prefilter.offset
+        : null;
+  }
+
+  public void testSearcher() throws Exception {
+    StringBuilder content = new StringBuilder();
+    while (content.length() < 200 * 1024) {
+      content.append("a need, a nail ");
+    }
+    // occurrences at the start, across a block boundary and at the end
+    int[] positions = { 0, Strip.Searcher.BLOCK_SIZE - 3, content.length() - 6 };
+    for (int position : positions) {
+      content.replace(position, position + 6, "needle");
+    }
+    File file = write("input.txt", content.toString());
+    FileChannel channel = FileChannel.open(file.toPath());
+    try {
+      Strip.Searcher searcher = new Strip.Searcher(new Strip.Prefilter("needle", 0), channel);
+      List<Long> found = new ArrayList<Long>();
+      for (long i = searcher.indexOf(0, file.length()); i != -1;
+          i = searcher.indexOf(i + 1, file.length())) {
+        found.add(i);
+      }
+      assertEquals(Arrays.asList(0L, (long) positions[1], (long) positions[2]), found);
+      assertEquals(-1, searcher.indexOf(1, positions[1] + 5));
+      assertEquals(positions[1], searcher.indexOf(1, positions[1] + 6));
+    } finally {
+      channel.close();
+    }
+  }
+
+  public void testSearcherStopsAtEndOfTruncatedFile() throws Exception {
+    File file = write("input.txt", "no literal here\n");
+    FileChannel channel = FileChannel.open(file.toPath());
+    try {
+      Strip.Searcher searcher = new Strip.Searcher(new Strip.Prefilter("needle", 0), channel);
+      // as if the file were truncated after its length was read
+      assertEquals(-1, searcher.indexOf(0, 200 * 1024));
+      assertEquals(-1, searcher.indexOf(14, 200 * 1024));
+    } finally {
+      channel.close();
+    }
+  }
+
+  public void testMaxMatchMustFitInWindow() throws Exception {
+    File file = write("input.txt", "SECRET\n");
+    String[][] rejected = {
+        { "--max-match", "2g" },
+        { "--max-match", "1000", "--window-size", "1000" },
+        { "--max-match", "500", "--window-size", "1000" },
+        { "--window-size", "3g" },
+    };
+    for (String[] flags : rejected) {
+      List<String> args = new ArrayList<String>(Arrays.asList(flags));
+      args.addAll(Arrays.asList("-c", "SECRET", file.getPath()));
+      try {
+        strip(args.toArray(new String[args.size()]));
+        fail(Arrays.toString(flags));
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+    assertEquals("SECRET\n", read(file));
+  }
+
+  public void testReplace() throws Exception {
+    String[][] replacements = {
+        { "password=(\\S+)", "password=[$1]" },
+        { "user=(?<user>u\\d+)", "${user}\\$\\\\" },
+        { "(\\w+)@(\\w+)\\.com", "$2$1$10" },
+        // names in comments and classes aren't groups
+        { "(?x) user= # (?<user>u)\n (?<id> u \\d+ )", "${id}" },
+        { "[](=]u(?<id>\\d+)", "<${id}>" },
+        // grows a small file's output past the buffer it's stripped into
+        { "(?m)^", "> a quoted line, with a replacement that's long enough to triple its size: " },
+    };
+    for (int size : new int[] { 200 * 1024, 300 * 1024 }) {
+      String input = corpus(size);
+      for (String[] replacement : replacements) {
+        assertReplacesLikeReplaceAll(input, replacement[0], replacement[1]);
+        assertReplacesLikeReplaceAll(input, replacement[0], replacement[1],
+            "--chunk-size", "1k", "--jobs", "2");
+        assertReplacesLikeReplaceAll(input, replacement[0], replacement[1],
+            "--max-match", "200", "--window-size", "1k");
+      }
+    }
+  }
+
+  public void testReplaceRejectsMissingGroups() throws Exception {
+    File file = write("input.txt", "password=hunter2\n");
+    File patterns = write("patterns.txt", "password=(\\S+)\n");
+    String[][] rejected = {
+        { "-r", "$2", "password=(\\S+)" },
+        { "-r", "${user}", "password=(\\S+)" },
+        { "-r", "${user}", "password=\\(?<user>\\S+\\)" },
+        { "-r", "${y}", "(?x) # (?<y>z)\n (?<x>a)" },
+        { "-r", "${y}", "[(]a(?<x>b)[](?<y>]" },
+        { "-r", "$1", "--patterns", patterns.getPath() },
+    };
+    for (String[] flags : rejected) {
+      List<String> args = new ArrayList<String>(Arrays.asList(flags));
+      args.addAll(Arrays.asList("-c", file.getPath()));
+      try {
+        strip(args.toArray(new String[args.size()]));
+        fail(Arrays.toString(flags));
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+    assertEquals("password=hunter2\n", read(file));
+  }
+
+  private void assertReplacesLikeReplaceAll(String input, String regex, String replacement,
+      String... flags) throws Exception {
+    File file = write("input.txt", input);
+    List<String> args = new ArrayList<String>(Arrays.asList(flags));
+    args.addAll(Arrays.asList("-c", "--replace", replacement, regex, file.getPath()));
+    strip(args.toArray(new String[args.size()]));
+    assertEquals(regex + " " + replacement + " " + Arrays.asList(flags),
+        input.replaceAll(regex, replacement), read(file));
+  }
+
+  public void testLauncherRunsTheBuildOfItsOwnSource() throws Exception {
+    String source = read(new File(
+        System.getProperty("strip.source", "src/com/publicobject/io/Strip.java")));
+    File current = write("current/Strip.java", source);
+    File older = write("older/Strip.java",
+        source.replace("\"Stripped \" + ", "\"Removed \" + "));
+    File file = new File(directory, "input.txt");
+
+    write("input.txt", "x SECRET\n");
+    String output = launch(current, "-c", "SECRET", file.getPath());
+    assertTrue(output, output.startsWith("Stripped 1 from " + file + "\n"));
+
+    // the older revision is older than the current one's build, and must run its own
+    assertTrue(older.setLastModified(System.currentTimeMillis() - 24 * 60 * 60 * 1000));
+    write("input.txt", "x SECRET\n");
+    output = launch(older, "-c", "SECRET", file.getPath());
+    assertTrue(output, output.startsWith("Removed 1 from " + file + "\n"));
+
+    write("input.txt", "x SECRET\n");
+    output = launch(current, "-c", "SECRET", file.getPath());
+    assertTrue(output, output.startsWith("Stripped 1 from " + file + "\n"));
+    assertEquals("x \n", read(file));
+  }
+
+  public void testTimeoutLeavesFileUnchanged() throws Exception {
+    StringBuilder backtracking = new StringBuilder();
+    for (int i = 0; i < 60; i++) {
+      backtracking.append('a');
+    }
+    File slow = write("slow.txt", backtracking + "\n");
+    File fast = write("fast.txt", "xx SECRET yy\n");
+    // backtracks exponentially over a run of a's, and has no literal to skip ahead to
+    String output = strip("-c", "--timeout", "100", "(.*a){20}\\d|SECRET",
+        slow.getPath(), fast.getPath());
+    assertTrue(output, output.contains("Timed out after 100 ms at "));
+    assertTrue(output, output.contains("Timed out on 1 files"));
+    assertEquals(backtracking + "\n", read(slow));
+    assertEquals("xx  yy\n", read(fast));
+  }
+
+  public void testStatsJson() throws Exception {
+    File a = write("a.txt", "password=a password=b\n");
+    File b = write("b.txt", "nothing here\n");
+    File json = new File(directory, "stats.json");
+    strip("-c", "--stats-json", json.getPath(), "password=\\S+", a.getPath(), b.getPath());
+    String stats = read(json);
+    assertTrue(stats, stats.contains("  \"files\": 2,\n"));
+    assertTrue(stats, stats.contains("  \"bytes\": 35,\n"));
+    assertTrue(stats, stats.contains("  \"matches\": 2,\n"));
+    assertTrue(stats, Pattern.compile("  \"latencyMillis\": \\{\"p50\": [\\d.]+, "
+        + "\"p99\": [\\d.]+, \"max\": [\\d.]+\\},\n").matcher(stats).find());
+    assertTrue(stats, stats.contains("  \"patterns\": [\n"
+        + "    {\"pattern\": \"password=\\\\S+\", \"matches\": 2}\n  ],\n"));
+    assertTrue(stats, stats.contains("{\"file\": " + Strip.Stats.json(a.getPath())));
+    assertTrue(stats, stats.contains("{\"file\": " + Strip.Stats.json(b.getPath())));
+
+    // 200 files taking 1 ms to 200 ms, in a random order
+    List<Integer> millis = new ArrayList<Integer>();
+    for (int i = 1; i <= 200; i++) {
+      millis.add(i);
+    }
+    Collections.shuffle(millis, new Random(0));
+    Strip.Stats known = new Strip.Stats();
+    for (int m : millis) {
+      known.add(result("file" + m, m * 1000000L));
+    }
+    stats = writeJson(known);
+    assertTrue(stats, stats.contains(
+        "  \"latencyMillis\": {\"p50\": 100.000, \"p99\": 198.000, \"max\": 200.000},\n"));
+    assertTrue(stats, stats.contains("  \"files\": 200,\n"));
+    assertTrue(stats, stats.contains("{\"belowMicros\": 2048, \"files\": 1}, "
+        + "{\"belowMicros\": 4096, \"files\": 2}"));
+    assertTrue(stats, stats.contains("  \"slowestFiles\": [\n    {\"file\": \"file200\", "));
+    assertEquals(Strip.Stats.SLOWEST_SIZE, count(stats, "{\"file\": "));
+    assertFalse(stats, stats.contains("\"file100\""));
+
+    // past the sample size the percentiles are estimates, but the max and totals are exact
+    Strip.Stats many = new Strip.Stats();
+    int files = Strip.Stats.SAMPLE_SIZE * 3;
+    for (int i = 1; i <= files; i++) {
+      many.add(result("file" + i, i * 1000L));
+    }
+    stats = writeJson(many);
+    assertTrue(stats, stats.contains("  \"files\": " + files + ",\n"));
+    assertTrue(stats, stats.contains(String.format(Locale.US, "\"max\": %.3f}", files / 1e3)));
+    Matcher p50 = Pattern.compile("\"p50\": ([\\d.]+)").matcher(stats);
+    assertTrue(stats, p50.find());
+    assertEquals(files / 2e3, Double.parseDouble(p50.group(1)), files / 20e3);
+    assertEquals(Strip.Stats.SLOWEST_SIZE, count(stats, "{\"file\": "));
+  }
+
+  public void testWatchStripsEachBurstOfWritesOnce() throws Exception {
+    File watched = new File(directory, "watched");
+    assertTrue(watched.mkdir());
+    File stdout = new File(directory, "stdout.txt");
+    Process process = strip(stdout,
+        "--watch", "--debounce", "500", "-c", "SECRET", watched.getPath());
+    try {
+      awaitContent(stdout, "Watching 1 directories\n");
+      File file = new File(watched, "file.txt");
+      for (int i = 0; i < 5; i++) {
+        Files.write(file.toPath(), ("SECRET " + i + "\n").getBytes("ISO-8859-1"),
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        Thread.sleep(20);
+      }
+      awaitContent(file, " 0\n 1\n 2\n 3\n 4\n");
+      awaitContent(stdout, "Watching 1 directories\nStripped 5 from " + file + "\n");
+
+      File other = write("watched/other.txt", "SECRET again\n");
+      awaitContent(other, " again\n");
+      // Strip's own rewrites raise events too, which mustn't cause another pass
+      Thread.sleep(1000);
+      assertEquals("Watching 1 directories\nStripped 5 from " + file + "\n"
+          + "Stripped 1 from " + other + "\n", read(stdout));
+    } finally {
+      process.destroy();
+      process.waitFor();
+    }
+  }
+
+  /**
+   * Strips {@code input} with {@code flags}, which include the patterns, and checks the result.
+   */
+  private void assertStrips(String expected, String input, String... flags) throws Exception {
+    File file = write("input.txt", input);
+    List<String> args = new ArrayList<String>(Arrays.asList(flags));
+    args.addAll(Arrays.asList("-c", file.getPath()));
+    strip(args.toArray(new String[args.size()]));
+    assertEquals(Arrays.asList(flags).toString(), expected, read(file));
+  }
+
+  /**
+   * Strips {@code input} with {@code regex} and {@code flags}, and checks that the result is the
+   * same as {@link String#replaceAll}'s.
+   */
+  private void assertStripsLikeReplaceAll(String input, String regex, String... flags)
+      throws Exception {
+    File file = write("input.txt", input);
+    List<String> args = new ArrayList<String>(Arrays.asList(flags));
+    args.addAll(Arrays.asList("-c", regex, file.getPath()));
+    strip(args.toArray(new String[args.size()]));
+    assertEquals(regex + " " + Arrays.asList(flags), input.replaceAll(regex, ""), read(file));
+  }
+
+  /**
+   * Returns log-like text of {@code size} bytes with things to strip on most lines. The same
+   * size always returns the same text.
+   */
+  private String corpus(int size) {
+    Random random = new Random(size);
+    StringBuilder result = new StringBuilder();
+    while (result.length() < size) {
+      switch (random.nextInt(4)) {
+        case 0:
+          result.append("user=u").append(random.nextInt(100000))
+              .append(" password=").append(Long.toString(random.nextLong() & Long.MAX_VALUE, 36))
+              .append('\n');
+          break;
+        case 1:
+          result.append("mail ").append(Integer.toString(random.nextInt(), 36)).append('@')
+              .append(Integer.toString(random.nextInt(1000), 36)).append(".com, ")
+              .append("user=u").append(random.nextInt(10)).append('\n');
+          break;
+        case 2:
+          result.append("took ").append(random.nextInt(1000)).append("ms\n");
+          break;
+        default:
+          result.append("BEGIN ").append(random.nextInt()).append('\n');
+          for (int i = random.nextInt(3); i > 0; i--) {
+            result.append("  at line ").append(random.nextInt(100)).append('\n');
+          }
+          result.append("END\n");
+      }
+    }
+    result.setLength(size);
+    return result.toString();
+  }
+
+  private Strip.Result result(String name, long nanos) {
+    Strip.Result result = new Strip.Result(null, 1, 100);
+    result.name = name;
+    result.nanos = nanos;
+    return result;
+  }
+
+  private String writeJson(Strip.Stats stats) throws Exception {
+    File json = new File(directory, "stats.json");
+    stats.writeJson(json, 1000, Strip.PatternSet.of(Pattern.compile("x")),
+        new AtomicLongArray(1));
+    return read(json);
+  }
+
+  private int count(String s, String substring) {
+    int result = 0;
+    for (int i = s.indexOf(substring); i != -1; i = s.indexOf(substring, i + 1)) {
+      result++;
+    }
+    return result;
+  }
+
+  /**
+   * Runs Strip with {@code args}, returning what it printed.
+   */
+  private String strip(String... args) throws Exception {
+    out.reset();
+    Strip.main(args);
+    return out.toString("UTF-8");
+  }
+
+  /**
+   * Starts Strip in another process, writing its stdout and stderr to {@code stdout}.
+   */
+  private Process strip(File stdout, String... args) throws IOException {
+    return new ProcessBuilder(command(args))
+        .redirectOutput(stdout)
+        .redirectErrorStream(true)
+        .start();
+  }
+
+  /**
+   * Waits up to 10 seconds for {@code file} to have {@code expected} as its content.
+   */
+  private void awaitContent(File file, String expected) throws Exception {
+    String content = null;
+    for (long deadline = System.currentTimeMillis() + 10 * 1000;
+        System.currentTimeMillis() < deadline; Thread.sleep(20)) {
+      content = file.exists() ? read(file) : null;
+      if (expected.equals(content)) {
+        return;
+      }
+    }
+    assertEquals(expected, content);
+  }
+
+  /**
+   * Runs Strip in another process with {@code input} piped to its stdin, returning its stdout.
+   * Strip reads stdin and writes stripped output and listings to the process's standard streams
+   * directly, so those can't be tested in-process.
+   */
+  private String stripInChildProcess(String input, String... args) throws Exception {
+    File stdout = new File(directory, "stdout.txt");
+    Process process = new ProcessBuilder(command(args))
+        .redirectOutput(stdout)
+        .redirectError(new File(directory, "stderr.txt"))
+        .start();
+    OutputStream stdin = process.getOutputStream();
+    try {
+      stdin.write(input.getBytes("ISO-8859-1"));
+    } finally {
+      stdin.close();
+    }
+    assertEquals(0, process.waitFor());
+    return read(stdout);
+  }
+
+  /**
+   * Runs {@code script} through the launcher in its header, with a cache in the temporary
+   * directory, returning its stdout and stderr.
+   */
+  private String launch(File script, String... args) throws Exception {
+    List<String> command = new ArrayList<String>(Arrays.asList("sh", script.getPath()));
+    command.addAll(Arrays.asList(args));
+    File stdout = new File(directory, "stdout.txt");
+    ProcessBuilder builder = new ProcessBuilder(command)
+        .redirectOutput(stdout)
+        .redirectErrorStream(true);
+    builder.environment().put("XDG_CACHE_HOME", new File(directory, "cache").getPath());
+    int status = builder.start().waitFor();
+    assertEquals(read(stdout), 0, status);
+    return read(stdout);
+  }
+
+  /**
+   * Returns the command to run Strip with {@code args} in a JVM like this one.
+   */
+  private List<String> command(String... args) {
+    List<String> command = new ArrayList<String>();
+    command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("Strip");
+    command.addAll(Arrays.asList(args));
+    return command;
+  }
+
+  private File write(String name, String content) throws IOException {
+    File file = new File(directory, name);
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), content.getBytes("ISO-8859-1"));
+    return file;
+  }
+
+  private String read(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), "ISO-8859-1");
+  }
+
+  private void delete(File file) {
+    File[] children = Files.isSymbolicLink(file.toPath()) ? null : file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2009 Jesse Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.publicobject.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+
+/**
+ * @author jessewilson@google.com (Jesse Wilson)
+ */
+public class Utf8FileCharSequenceTest extends TestCase {
+
+  /** ASCII, 2, 3 and 4 byte sequences; the 4 byte sequences decode to surrogate pairs. */
+  private static final String TEXT = "caf\u00e9 \u20ac5 \ud83d\ude00 na\u00efve "
+      + "\ud834\udd1e\ud834\udd1e key=\u00fc\u00f1\u00ee\u00e7\u00f8d\u00e9\n";
+
+  private File file;
+
+  @Override protected void setUp() throws Exception {
+    file = File.createTempFile("Utf8FileCharSequenceTest", ".txt");
+  }
+
+  @Override protected void tearDown() throws Exception {
+    file.delete();
+  }
+
+  public void testCharAtEveryCheckpointInterval() throws IOException {
+    write(TEXT.getBytes("UTF-8"));
+    for (int interval = 1; interval < 8; interval++) {
+      Utf8FileCharSequence sequence
+          = new Utf8FileCharSequence(new MappedByteSource(file), interval);
+      assertEquals(TEXT.length(), sequence.length());
+      assertEquals(TEXT, sequence.toString());
+
+      // random order exercises checkpoints, forward walks and backward walks
+      Random random = new Random(interval);
+      for (int i = 0; i < 1000; i++) {
+        int index = random.nextInt(TEXT.length());
+        assertEquals(TEXT.charAt(index), sequence.charAt(index));
+      }
+      for (int i = TEXT.length() - 1; i >= 0; i--) {
+        assertEquals(TEXT.charAt(i), sequence.charAt(i));
+      }
+      sequence.close();
+    }
+  }
+
+  public void testSubSequence() throws IOException {
+    write(TEXT.getBytes("UTF-8"));
+    Utf8FileCharSequence sequence = new Utf8FileCharSequence(new MappedByteSource(file), 3);
+    // starts on the low half of a surrogate pair
+    assertEquals(TEXT.substring(9, 20), sequence.subSequence(9, 20).toString());
+    Utf8FileCharSequence view = sequence.subSequence(9, 20);
+    assertEquals(TEXT.substring(10, 12), view.subSequence(1L, 3L).toString());
+    sequence.close();
+  }
+
+  public void testMalformedBytesDecodeToReplacementCharacter() throws IOException {
+    write(new byte[] {
+        'a', (byte) 0xff, (byte) 0x80, 'b', (byte) 0xe2, (byte) 0x82, 'c',
+        (byte) 0xc3, (byte) 0xa9, (byte) 0xa9, (byte) 0xed, (byte) 0xa0, (byte) 0x80, (byte) 0xc3
+    });
+    String expected = "a\ufffd\ufffdb\ufffd\ufffdc\u00e9\ufffd\ufffd\ufffd\ufffd\ufffd";
+    Utf8FileCharSequence sequence = new Utf8FileCharSequence(new MappedByteSource(file), 2);
+    assertEquals(expected, sequence.toString());
+    for (int i = expected.length() - 1; i >= 0; i--) {
+      assertEquals(expected.charAt(i), sequence.charAt(i));
+    }
+    sequence.close();
+  }
+
+  public void testRegex() throws IOException {
+    write(TEXT.getBytes("UTF-8"));
+    Utf8FileCharSequence sequence = Utf8FileCharSequence.paged(file, 8, 4);
+    Matcher matcher = Pattern.compile("key=(\\w+)", Pattern.UNICODE_CHARACTER_CLASS)
+        .matcher(sequence);
+    assertTrue(matcher.find());
+    assertEquals("\u00fc\u00f1\u00ee\u00e7\u00f8d\u00e9", matcher.group(1));
+    sequence.close();
+  }
+
+  private void write(byte[] bytes) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(bytes);
+    out.close();
+  }
+}